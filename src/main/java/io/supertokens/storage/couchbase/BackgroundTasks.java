@@ -0,0 +1,102 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.couchbase;
+
+import io.supertokens.storage.couchbase.output.Logging;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Runs the plugin's periodic maintenance work (cache revalidation, index reconciliation etc) on a small pool of daemon
+// threads that is tied to the lifetime of a Start instance. Lease renewals get a thread of their own, since the jobs
+// that hold leases can occupy the pool for as long as they run, and a renewal that waits behind them lets the lease
+// expire under its holder.
+public class BackgroundTasks extends ResourceDistributor.SingletonResource {
+
+    private static final String RESOURCE_KEY = "io.supertokens.storage.couchbase.BackgroundTasks";
+    private static final int POOL_SIZE = 2;
+
+    private final ScheduledExecutorService executor;
+    private final ScheduledExecutorService leaseRenewals;
+
+    private BackgroundTasks(Start start) {
+        this.executor = Executors.newScheduledThreadPool(POOL_SIZE, runnable -> {
+            Thread thread = new Thread(runnable, "couchbase-plugin-background-" + start.getProcessId());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.leaseRenewals = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "couchbase-plugin-lease-renewal-" + start.getProcessId());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static BackgroundTasks getInstance(Start start) {
+        ResourceDistributor.SingletonResource instance = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (instance == null) {
+            instance = start.getResourceDistributor().setResource(RESOURCE_KEY, new BackgroundTasks(start));
+        }
+        return (BackgroundTasks) instance;
+    }
+
+    // exceptions thrown by the task are logged and do not stop future runs
+    public ScheduledFuture<?> scheduleWithFixedDelay(Start start, String name, Runnable task, long initialDelay,
+            long delay) {
+        return scheduleWithFixedDelay(executor, start, name, task, initialDelay, delay);
+    }
+
+    // like scheduleWithFixedDelay, but on the lease renewal thread. The task must be short and must not block on
+    // anything but its own KV write.
+    ScheduledFuture<?> scheduleLeaseRenewal(Start start, String name, Runnable task, long delay) {
+        return scheduleWithFixedDelay(leaseRenewals, start, name, task, delay, delay);
+    }
+
+    private static ScheduledFuture<?> scheduleWithFixedDelay(ScheduledExecutorService executor, Start start,
+            String name, Runnable task, long initialDelay, long delay) {
+        return executor.scheduleWithFixedDelay(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                Logging.error(start, "Background task " + name + " failed", false, e);
+            }
+        }, initialDelay, delay, TimeUnit.MILLISECONDS);
+    }
+
+    public void submit(Start start, String name, Runnable task) {
+        executor.execute(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                Logging.error(start, "Background task " + name + " failed", false, e);
+            }
+        });
+    }
+
+    static void shutdown(Start start) {
+        BackgroundTasks instance = (BackgroundTasks) start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (instance == null) {
+            return;
+        }
+        instance.executor.shutdownNow();
+        instance.leaseRenewals.shutdownNow();
+        start.getResourceDistributor().removeResource(RESOURCE_KEY);
+    }
+}
@@ -23,11 +23,14 @@ import io.supertokens.pluginInterface.exceptions.DbInitException;
 import io.supertokens.storage.couchbase.config.Config;
 import io.supertokens.storage.couchbase.config.CouchbaseConfig;
 import io.supertokens.storage.couchbase.output.Logging;
+import io.supertokens.storage.couchbase.utils.Utils;
 
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.time.Duration;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ConnectionPool extends ResourceDistributor.SingletonResource {
 
@@ -37,6 +40,10 @@ public class ConnectionPool extends ResourceDistributor.SingletonResource {
 
     private final Start start;
 
+    // identifies this node in the lease documents
+    private final String leaseOwner = Utils.getUUID();
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+
     private ConnectionPool(Start start) {
         this.start = start;
     }
@@ -233,6 +240,14 @@ public class ConnectionPool extends ResourceDistributor.SingletonResource {
         return getInstance(start).bucket;
     }
 
+    public static Lease getLease(Start start, String name) {
+        ConnectionPool instance = getInstance(start);
+        if (instance == null) {
+            throw new RuntimeException("Please call initPool before getConnection");
+        }
+        return instance.leases.computeIfAbsent(name, n -> new Lease(start, n, instance.leaseOwner));
+    }
+
     static void close(Start start) {
         if (getInstance(start) == null) {
             return;
@@ -0,0 +1,252 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.couchbase;
+
+import com.couchbase.client.core.error.CasMismatchException;
+import com.couchbase.client.core.error.CouchbaseException;
+import com.couchbase.client.core.error.DocumentExistsException;
+import com.couchbase.client.core.error.DocumentNotFoundException;
+import com.couchbase.client.java.Collection;
+import com.couchbase.client.java.kv.InsertOptions;
+import com.couchbase.client.java.kv.LookupInResult;
+import com.couchbase.client.java.kv.LookupInSpec;
+import com.couchbase.client.java.kv.RemoveOptions;
+import com.couchbase.client.java.kv.ReplaceOptions;
+import com.google.gson.JsonObject;
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.couchbase.config.Config;
+import io.supertokens.storage.couchbase.output.Logging;
+import io.supertokens.storage.couchbase.utils.GsonTranscoder;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A lease on one named piece of maintenance work, so that when many core nodes share a bucket only one of them does
+// it at a time and the others skip it after a single KV round trip. The lease is a document in the key value
+// collection that names its owner and expires on its own, so a node that dies while holding it only holds the others
+// up until then. It is taken with an insert, and renewed and released with the CAS of the owner's last write, so two
+// nodes can never both think they hold it. Leases are handed out by ConnectionPool.getLease.
+public class Lease {
+
+    /*
+     * Schema, in the key value collection (the key is KEY_PREFIX + name)
+     * {
+     * owner: string,
+     * }
+     */
+    private static final String KEY_PREFIX = "lease_";
+    private static final String OWNER = "owner";
+
+    private final Start start;
+    private final String name;
+    private final String owner;
+    private final boolean enabled;
+    private final long duration;
+
+    private final Object lock = new Object();
+    // CAS of our last write to the lease document, 0 while we do not hold it
+    private long cas = 0;
+    private ScheduledFuture<?> renewal = null;
+    private volatile String lastSeenOwner = null;
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong renewed = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final AtomicLong handOffs = new AtomicLong();
+
+    Lease(Start start, String name, String owner) {
+        this.start = start;
+        this.name = name;
+        this.owner = owner;
+        this.enabled = Config.getConfig(start).isMaintenanceLeaseEnabled();
+        this.duration = Config.getConfig(start).getMaintenanceLeaseDuration();
+    }
+
+    public interface Job<T> {
+        T run() throws StorageQueryException;
+    }
+
+    // runs the job if this node gets the lease, renewing the lease while the job runs and releasing it afterwards.
+    // Returns null, without running the job, if the lease is held by another node (or another thread of this one).
+    // With leases disabled the job is always run.
+    public <T> T runIfAcquired(Job<T> job) throws StorageQueryException {
+        if (!enabled) {
+            return job.run();
+        }
+        if (!tryAcquire()) {
+            return null;
+        }
+        try {
+            return job.run();
+        } finally {
+            release();
+        }
+    }
+
+    // whether the job that is running under this lease may go on. This turns false if a renewal found that the lease
+    // had expired and was taken over by another node, in which case the job should stop as soon as it can.
+    public boolean isHeld() {
+        if (!enabled) {
+            return true;
+        }
+        synchronized (lock) {
+            return cas != 0;
+        }
+    }
+
+    private boolean tryAcquire() {
+        synchronized (lock) {
+            if (cas != 0) {
+                skipped.incrementAndGet();
+                return false;
+            }
+            Collection collection = getCollection();
+            String previousOwner = lastSeenOwner;
+            try {
+                cas = collection.insert(KEY_PREFIX + name, newDocument(), InsertOptions.insertOptions()
+                        .expiry(Duration.ofMillis(duration)).transcoder(GsonTranscoder.INSTANCE)).cas();
+            } catch (DocumentExistsException e) {
+                if (!takeBackOwnLease(collection)) {
+                    skipped.incrementAndGet();
+                    return false;
+                }
+            }
+            if (previousOwner != null && !previousOwner.equals(owner)) {
+                handOffs.incrementAndGet();
+                Logging.debug(start, "Took over the " + name + " lease from " + previousOwner);
+            }
+            lastSeenOwner = owner;
+            acquired.incrementAndGet();
+            long renewInterval = Math.max(1, duration / 3);
+            renewal = BackgroundTasks.getInstance(start).scheduleLeaseRenewal(start, name + " lease renewal",
+                    this::renew, renewInterval);
+            return true;
+        }
+    }
+
+    // a lease document that still names this node is left over from a release that failed, and can be reused
+    private boolean takeBackOwnLease(Collection collection) {
+        LookupInResult current;
+        try {
+            current = collection.lookupIn(KEY_PREFIX + name, Collections.singletonList(LookupInSpec.get(OWNER)));
+        } catch (DocumentNotFoundException e) {
+            // expired or released just now, the next run will take it
+            return false;
+        }
+        lastSeenOwner = current.contentAs(0, String.class);
+        if (!owner.equals(lastSeenOwner)) {
+            return false;
+        }
+        try {
+            cas = write(collection, current.cas());
+            return true;
+        } catch (CasMismatchException | DocumentNotFoundException e) {
+            return false;
+        }
+    }
+
+    private void renew() {
+        synchronized (lock) {
+            if (cas == 0) {
+                return;
+            }
+            try {
+                cas = write(getCollection(), cas);
+                renewed.incrementAndGet();
+            } catch (CasMismatchException | DocumentNotFoundException e) {
+                // our lease ran out before we renewed it, and another node may have it now
+                cas = 0;
+                lost.incrementAndGet();
+                Logging.info(start, "Lost the " + name + " lease before the job holding it finished", false);
+            }
+        }
+    }
+
+    private void release() {
+        synchronized (lock) {
+            if (renewal != null) {
+                renewal.cancel(false);
+                renewal = null;
+            }
+            if (cas == 0) {
+                return;
+            }
+            try {
+                getCollection().remove(KEY_PREFIX + name, RemoveOptions.removeOptions().cas(cas));
+            } catch (CasMismatchException | DocumentNotFoundException ignored) {
+            } catch (CouchbaseException e) {
+                // the lease document expires on its own
+                Logging.error(start, "Could not release the " + name + " lease", false, e);
+            }
+            cas = 0;
+        }
+    }
+
+    private long write(Collection collection, long expectedCas) {
+        return collection.replace(KEY_PREFIX + name, newDocument(), ReplaceOptions.replaceOptions().cas(expectedCas)
+                .expiry(Duration.ofMillis(duration)).transcoder(GsonTranscoder.INSTANCE)).cas();
+    }
+
+    private JsonObject newDocument() {
+        JsonObject document = new JsonObject();
+        document.addProperty(OWNER, owner);
+        return document;
+    }
+
+    private Collection getCollection() {
+        return ConnectionPool.getClientConnectedToBucket(start).collection(Config.getConfig(start).getKeyValueCollection());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // the id of this node, which is what the lease document names while this node holds the lease
+    public String getOwner() {
+        return owner;
+    }
+
+    // the owner of the lease the last time this node looked
+    public String getLastSeenOwner() {
+        return lastSeenOwner;
+    }
+
+    public long getAcquiredCount() {
+        return acquired.get();
+    }
+
+    // runs that were skipped because the lease was held elsewhere
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    public long getRenewedCount() {
+        return renewed.get();
+    }
+
+    public long getLostCount() {
+        return lost.get();
+    }
+
+    // times this node took the lease after last seeing it held by another node
+    public long getHandOffCount() {
+        return handOffs.get();
+    }
+}
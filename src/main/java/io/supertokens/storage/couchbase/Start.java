@@ -32,10 +32,21 @@ import io.supertokens.pluginInterface.multitenancy.TenantIdentifier;
 import io.supertokens.pluginInterface.session.SessionInfo;
 import io.supertokens.pluginInterface.session.noSqlStorage.SessionInfoWithLastUpdated;
 import io.supertokens.pluginInterface.session.noSqlStorage.SessionNoSQLStorage_1;
+import io.supertokens.storage.couchbase.cache.AccessTokenSigningKeyCache;
+import io.supertokens.storage.couchbase.cache.JWTSigningKeyCache;
+import io.supertokens.storage.couchbase.cache.SessionInfoCache;
 import io.supertokens.storage.couchbase.config.Config;
 import io.supertokens.storage.couchbase.config.CouchbaseConfig;
 import io.supertokens.storage.couchbase.output.Logging;
+import io.supertokens.storage.couchbase.queries.ExpiredSessionSweeper;
 import io.supertokens.storage.couchbase.queries.JWTSigningQueries;
+import io.supertokens.storage.couchbase.queries.KeyValueQueries;
+import io.supertokens.storage.couchbase.queries.PreparedStatements;
+import io.supertokens.storage.couchbase.queries.QueryIndexes;
+import io.supertokens.storage.couchbase.queries.QueryPlanAdvisor;
+import io.supertokens.storage.couchbase.queries.SessionPayloadMigration;
+import io.supertokens.storage.couchbase.queries.SessionQueries;
+import io.supertokens.storage.couchbase.queries.UserSessionIndex;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
@@ -62,7 +73,13 @@ public class Start implements SessionNoSQLStorage_1, JWTRecipeNoSQLStorage_1 {
         try {
             initStorage(false);
             enabled = true;
-            Queries.deleteAllCollections(this);
+            SessionInfoCache.getInstance(this).clear();
+            SessionQueries.deleteAllSessions(this);
+            SessionQueries.deleteAllSessionPayloads(this);
+            KeyValueQueries.deleteAllKeyValues(this);
+            JWTSigningQueries.deleteAllJWTSigningKeys(this);
+            getAccessTokenSigningKeyCache().refresh();
+            JWTSigningKeyCache.getInstance(this).invalidate();
         } catch (CouchbaseException e) {
             throw new StorageQueryException(e);
         } catch (DbInitException e) {
@@ -74,6 +91,7 @@ public class Start implements SessionNoSQLStorage_1, JWTRecipeNoSQLStorage_1 {
 
     @Override
     public void close() {
+        BackgroundTasks.shutdown(this);
         ConnectionPool.close(this);
     }
 
@@ -82,10 +100,15 @@ public class Start implements SessionNoSQLStorage_1, JWTRecipeNoSQLStorage_1 {
         this.enabled = enabled;
     }
 
+    public boolean isStorageLayerEnabled() {
+        return enabled;
+    }
+
     @Override
     public SessionInfo getSession(TenantIdentifier tenantIdentifier, String sessionHandle) throws StorageQueryException {
         try {
-            return Queries.getSession(this, sessionHandle);
+            SessionQueries.SessionDocument document = SessionQueries.getSession(this, sessionHandle);
+            return document == null ? null : document.info;
         } catch (CouchbaseException e) {
             throw new StorageQueryException(e);
         }
@@ -96,19 +119,19 @@ public class Start implements SessionNoSQLStorage_1, JWTRecipeNoSQLStorage_1 {
             throws StorageQueryException {
         try {
             assert sessionData != null;
-            com.couchbase.client.java.json.JsonObject cbSessionData = com.couchbase.client.java.json.JsonObject.fromJson(sessionData.toString());
             assert jwtPayload != null;
-            com.couchbase.client.java.json.JsonObject cbJWTPayload = com.couchbase.client.java.json.JsonObject.fromJson(jwtPayload.toString());
-            return Queries.updateSession(this, sessionHandle, cbSessionData, cbJWTPayload);
+            return SessionQueries.updateSession(this, sessionHandle, sessionData, jwtPayload);
         } catch (CouchbaseException e) {
             throw new StorageQueryException(e);
+        } finally {
+            SessionInfoCache.getInstance(this).invalidate(sessionHandle);
         }
     }
 
     @Override
     public void deleteAllExpiredSessions() throws StorageQueryException {
         try {
-            Queries.deleteAllExpiredSessions(this);
+            ExpiredSessionSweeper.getInstance(this).sweep();
         } catch (CouchbaseException e) {
             throw new StorageQueryException(e);
         }
@@ -117,7 +140,11 @@ public class Start implements SessionNoSQLStorage_1, JWTRecipeNoSQLStorage_1 {
     @Override
     public String[] getAllNonExpiredSessionHandlesForUser(TenantIdentifier tenantIdentifier, String userId) throws StorageQueryException {
         try {
-            return Queries.getAllNonExpiredSessionHandlesForUser(this, userId);
+            UserSessionIndex userIndex = UserSessionIndex.getInstance(this);
+            if (userIndex.isEnabled()) {
+                return userIndex.getNonExpiredSessionHandles(userId);
+            }
+            return SessionQueries.getAllNonExpiredSessionHandlesForUser(this, userId);
         } catch (CouchbaseException e) {
             throw new StorageQueryException(e);
         }
@@ -126,16 +153,21 @@ public class Start implements SessionNoSQLStorage_1, JWTRecipeNoSQLStorage_1 {
     @Override
     public int deleteSession(TenantIdentifier tenantIdentifier, String[] sessionHandles) throws StorageQueryException {
         try {
-            return Queries.deleteSession(this, sessionHandles);
+            return SessionQueries.deleteSessions(this, sessionHandles);
         } catch (CouchbaseException e) {
             throw new StorageQueryException(e);
+        } finally {
+            SessionInfoCache cache = SessionInfoCache.getInstance(this);
+            for (String sessionHandle : sessionHandles) {
+                cache.invalidate(sessionHandle);
+            }
         }
     }
 
     @Override
     public int getNumberOfSessions(TenantIdentifier tenantIdentifier) throws StorageQueryException {
         try {
-            return Queries.getNumberOfSessions(this);
+            return SessionQueries.getNumberOfSessions(this);
         } catch (CouchbaseException e) {
             throw new StorageQueryException(e);
         }
@@ -145,17 +177,20 @@ public class Start implements SessionNoSQLStorage_1, JWTRecipeNoSQLStorage_1 {
     public boolean updateSessionInfo_Transaction(String sessionHandle, String refreshTokenHash2, long expiry,
             String lastUpdatedSign) throws StorageQueryException {
         try {
-            return Queries.updateSessionInfo_Transaction(this, sessionHandle, refreshTokenHash2, expiry,
+            return SessionQueries.updateSessionInfo_Transaction(this, sessionHandle, refreshTokenHash2, expiry,
                     lastUpdatedSign);
         } catch (CouchbaseException e) {
             throw new StorageQueryException(e);
+        } finally {
+            SessionInfoCache.getInstance(this).invalidate(sessionHandle);
         }
     }
 
+    // userDataInDatabase of the result is null, see SessionQueries.getSessionInfo_Transaction
     @Override
     public SessionInfoWithLastUpdated getSessionInfo_Transaction(String sessionHandle) throws StorageQueryException {
         try {
-            return Queries.getSessionInfo_Transaction(this, sessionHandle);
+            return SessionQueries.getSessionInfo_Transaction(this, sessionHandle);
         } catch (CouchbaseException e) {
             throw new StorageQueryException(e);
         }
@@ -167,11 +202,9 @@ public class Start implements SessionNoSQLStorage_1, JWTRecipeNoSQLStorage_1 {
             throws StorageQueryException {
         try {
             assert userDataInDatabase != null;
-            com.couchbase.client.java.json.JsonObject cbUserDataInDatabase = com.couchbase.client.java.json.JsonObject.fromJson(userDataInDatabase.toString());
             assert userDataInJWT != null;
-            com.couchbase.client.java.json.JsonObject cbUserDataInJWT = com.couchbase.client.java.json.JsonObject.fromJson(userDataInJWT.toString());
-            Queries.createNewSession(this, sessionHandle, userId, refreshTokenHash2, cbUserDataInDatabase, expiry,
-                    cbUserDataInJWT, createdAtTime, useStaticKey);
+            SessionQueries.createNewSession(this, sessionHandle, userId, refreshTokenHash2, userDataInDatabase, expiry,
+                    userDataInJWT, createdAtTime, useStaticKey);
         } catch (CouchbaseException e) {
             throw new StorageQueryException(e);
         }
@@ -179,12 +212,36 @@ public class Start implements SessionNoSQLStorage_1, JWTRecipeNoSQLStorage_1 {
 
     @Override
     public boolean deleteSessionsOfUser(TenantIdentifier tenantIdentifier, String userId) throws StorageQueryException {
-        return Queries.deleteSessionsOfUser(this, userId);
+        try {
+            return deleteAllSessionsOfUser(userId);
+        } finally {
+            SessionInfoCache.getInstance(this).invalidateAllOfUser(userId);
+        }
     }
 
     @Override
     public void deleteSessionsOfUser(AppIdentifier appIdentifier, String userId) throws StorageQueryException {
-        Queries.deleteSessionsOfUser(this, userId);
+        try {
+            deleteAllSessionsOfUser(userId);
+        } finally {
+            SessionInfoCache.getInstance(this).invalidateAllOfUser(userId);
+        }
+    }
+
+    private boolean deleteAllSessionsOfUser(String userId) throws StorageQueryException {
+        UserSessionIndex userIndex = UserSessionIndex.getInstance(this);
+        if (userIndex.isEnabled()) {
+            try {
+                return userIndex.deleteSessionsOfUser(userId);
+            } catch (CouchbaseException e) {
+                throw new StorageQueryException(e);
+            }
+        }
+        try {
+            return SessionQueries.deleteSessionsOfUser(this, userId);
+        } catch (CouchbaseException e) {
+            throw new StorageQueryException(e);
+        }
     }
 
     @Override
@@ -195,7 +252,11 @@ public class Start implements SessionNoSQLStorage_1, JWTRecipeNoSQLStorage_1 {
     @Override
     public boolean setRefreshTokenSigningKey_Transaction(KeyValueInfoWithLastUpdated info)
             throws StorageQueryException {
-        return setKeyValue_Transaction(REFRESH_TOKEN_KEY_NAME, info);
+        try {
+            return setKeyValue_Transaction(REFRESH_TOKEN_KEY_NAME, info);
+        } catch (CouchbaseException e) {
+            throw new StorageQueryException(e);
+        }
     }
 
     @Override
@@ -205,14 +266,17 @@ public class Start implements SessionNoSQLStorage_1, JWTRecipeNoSQLStorage_1 {
 
     @Override
     public void removeLegacyAccessTokenSigningKey_Transaction() throws StorageQueryException {
-        Queries.deleteKeyValue(this, ACCESS_TOKEN_SIGNING_KEY_NAME);
+        try {
+            KeyValueQueries.deleteKeyValue(this, ACCESS_TOKEN_SIGNING_KEY_NAME);
+        } catch (CouchbaseException e) {
+            throw new StorageQueryException(e);
+        }
     }
 
     @Override
     public KeyValueInfo[] getAccessTokenSigningKeys_Transaction() throws StorageQueryException {
         try {
-            List<KeyValueInfo> keyList = Queries.getArrayKeyValue_Transaction(this, ACCESS_TOKEN_SIGNING_KEY_LIST_NAME);
-            return keyList.toArray(new KeyValueInfo[keyList.size()]);
+            return getAccessTokenSigningKeyCache().get();
         } catch (CouchbaseException e) {
             throw new StorageQueryException(e);
         }
@@ -222,21 +286,31 @@ public class Start implements SessionNoSQLStorage_1, JWTRecipeNoSQLStorage_1 {
     public boolean addAccessTokenSigningKey_Transaction(KeyValueInfo info, Long lastCreated)
             throws StorageQueryException {
         try {
-            return Queries.addArrayKeyValue_Transaction(this, ACCESS_TOKEN_SIGNING_KEY_LIST_NAME, info, lastCreated);
+            return KeyValueQueries.addArrayKeyValue_Transaction(this, ACCESS_TOKEN_SIGNING_KEY_LIST_NAME, info,
+                    lastCreated);
         } catch (CouchbaseException e) {
             throw new StorageQueryException(e);
+        } finally {
+            // also when nothing was added, in which case another node has rotated the keys and the core reads them next
+            getAccessTokenSigningKeyCache().refresh();
         }
     }
 
     @Override
     public void removeAccessTokenSigningKeysBefore(AppIdentifier appIdentifier, long time) throws StorageQueryException {
         try {
-            Queries.removeArrayKeyValuesBefore(this, ACCESS_TOKEN_SIGNING_KEY_LIST_NAME, time);
+            KeyValueQueries.removeArrayKeyValuesBefore(this, ACCESS_TOKEN_SIGNING_KEY_LIST_NAME, time);
         } catch (CouchbaseException e) {
             throw new StorageQueryException(e);
+        } finally {
+            getAccessTokenSigningKeyCache().refresh();
         }
     }
 
+    private AccessTokenSigningKeyCache getAccessTokenSigningKeyCache() {
+        return AccessTokenSigningKeyCache.getInstance(this, ACCESS_TOKEN_SIGNING_KEY_LIST_NAME);
+    }
+
     public ResourceDistributor getResourceDistributor() {
         return resourceDistributor;
     }
@@ -304,12 +378,18 @@ public class Start implements SessionNoSQLStorage_1, JWTRecipeNoSQLStorage_1 {
     @Override
     public void initStorage(boolean shouldWait) throws DbInitException {
         ConnectionPool.initPool(this);
+        QueryIndexes.getInstance(this).provision();
+        PreparedStatements.getInstance(this).warm();
+        QueryPlanAdvisor.getInstance(this).run();
+        SessionPayloadMigration.getInstance(this).start();
+        UserSessionIndex.getInstance(this).startReconciling();
+        getAccessTokenSigningKeyCache().startRevalidating();
     }
 
     @Override
     public void setKeyValue(TenantIdentifier tenantIdentifier, String key, KeyValueInfo info) throws StorageQueryException {
         try {
-            Queries.setKeyValue(this, key, info);
+            KeyValueQueries.setKeyValue(this, key, info);
         } catch (CouchbaseException e) {
             throw new StorageQueryException(e);
         }
@@ -318,7 +398,7 @@ public class Start implements SessionNoSQLStorage_1, JWTRecipeNoSQLStorage_1 {
     @Override
     public KeyValueInfo getKeyValue(TenantIdentifier tenantIdentifier, String key) throws StorageQueryException {
         try {
-            return Queries.getKeyValue(this, key);
+            return KeyValueQueries.getKeyValue(this, key);
         } catch (CouchbaseException e) {
             throw new StorageQueryException(e);
         }
@@ -327,7 +407,7 @@ public class Start implements SessionNoSQLStorage_1, JWTRecipeNoSQLStorage_1 {
     @Override
     public boolean setKeyValue_Transaction(String key, KeyValueInfoWithLastUpdated info) throws StorageQueryException {
         try {
-            return Queries.setKeyValue_Transaction(this, key, info);
+            return KeyValueQueries.setKeyValue_Transaction(this, key, info);
         } catch (CouchbaseException e) {
             throw new StorageQueryException(e);
         }
@@ -336,7 +416,7 @@ public class Start implements SessionNoSQLStorage_1, JWTRecipeNoSQLStorage_1 {
     @Override
     public KeyValueInfoWithLastUpdated getKeyValue_Transaction(String key) throws StorageQueryException {
         try {
-            return Queries.getKeyValue_Transaction(this, key);
+            return KeyValueQueries.getKeyValue_Transaction(this, key);
         } catch (CouchbaseException e) {
             throw new StorageQueryException(e);
         }
@@ -380,7 +460,7 @@ public class Start implements SessionNoSQLStorage_1, JWTRecipeNoSQLStorage_1 {
     @Override
     public List<JWTSigningKeyInfo> getJWTSigningKeys_Transaction() throws StorageQueryException {
         try {
-            return JWTSigningQueries.getJWTSigningKeys_Transaction(this);
+            return JWTSigningKeyCache.getInstance(this).get();
         } catch (CouchbaseException e) {
             throw new StorageQueryException(e);
         }
@@ -392,14 +472,9 @@ public class Start implements SessionNoSQLStorage_1, JWTRecipeNoSQLStorage_1 {
         try {
             return JWTSigningQueries.setJWTSigningKeyInfoIfNoKeyForAlgorithmExists_Transaction(this, keyInfo);
         } catch (CouchbaseException e) {
-
-            if (e.getMessage().contains("(DuplicateKey)")
-                    && e.getMessage().contains(Config.getConfig(this).getBucketName() + "."
-                            + Config.getConfig(this).getJWTSigningKeysCollection())) {
-                throw new DuplicateKeyIdException();
-            }
-
             throw new StorageQueryException(e);
+        } finally {
+            JWTSigningKeyCache.getInstance(this).invalidate();
         }
     }
 
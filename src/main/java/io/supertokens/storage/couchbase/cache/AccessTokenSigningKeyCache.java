@@ -0,0 +1,251 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.couchbase.cache;
+
+import com.couchbase.client.core.error.CouchbaseException;
+import io.supertokens.pluginInterface.KeyValueInfo;
+import io.supertokens.storage.couchbase.BackgroundTasks;
+import io.supertokens.storage.couchbase.ResourceDistributor;
+import io.supertokens.storage.couchbase.Start;
+import io.supertokens.storage.couchbase.config.Config;
+import io.supertokens.storage.couchbase.config.CouchbaseConfig;
+import io.supertokens.storage.couchbase.output.Logging;
+import io.supertokens.storage.couchbase.queries.KeyValueQueries;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Per node copy of the access token signing key list, which the core reads for every access token it signs or
+// verifies but which only changes when the keys are rotated. Reads are served from memory, and a background task
+// revalidates the copy by comparing the CAS of the list's document, reloading it only if that has moved. If the
+// cluster cannot be reached, the last good list is served until it is max staleness old, after which reads go to the
+// cluster again. The next rotation is expected when the newest key is as old as the gap between the two newest keys,
+// and the first read after that revalidates before it is served.
+// A refresh drops the copy and starts a new generation, and a load that started in an earlier generation is never
+// kept, so a revalidation that started before a refresh cannot put back the list the refresh replaced. Within a
+// generation, a load is not kept if the CAS it read is older than the copy's. There is one instance per list.
+public class AccessTokenSigningKeyCache extends ResourceDistributor.SingletonResource {
+
+    private static final String RESOURCE_KEY = "io.supertokens.storage.couchbase.cache.AccessTokenSigningKeyCache";
+
+    private final Start start;
+    private final String key;
+    private final Source source;
+    private final boolean enabled;
+    private final long revalidateInterval;
+    private final long maxStaleness;
+
+    private final Object lock = new Object();
+    private volatile Snapshot current = null;
+    private BackgroundTasks scheduledOn = null;
+    // bumped by every refresh, guarded by lock
+    private long generation = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong failedRevalidations = new AtomicLong();
+    private final AtomicLong staleReads = new AtomicLong();
+
+    private AccessTokenSigningKeyCache(Start start, String key, CouchbaseConfig config) {
+        this(start, key, config, new Source() {
+            @Override
+            public KeyValueQueries.VersionedArrayKeyValue read(String key) {
+                return KeyValueQueries.getVersionedArrayKeyValue(start, key);
+            }
+
+            @Override
+            public long getCas(String key) {
+                return KeyValueQueries.getCas(start, key);
+            }
+        });
+    }
+
+    // for tests, which give the list through source instead of the key value collection
+    public AccessTokenSigningKeyCache(Start start, String key, CouchbaseConfig config, Source source) {
+        this.start = start;
+        this.key = key;
+        this.source = source;
+        this.enabled = config.isAccessTokenSigningKeyCacheEnabled();
+        this.revalidateInterval = config.getAccessTokenSigningKeyCacheRevalidateInterval();
+        this.maxStaleness = config.getAccessTokenSigningKeyCacheMaxStaleness();
+    }
+
+    public static AccessTokenSigningKeyCache getInstance(Start start, String key) {
+        String resourceKey = RESOURCE_KEY + "." + key;
+        ResourceDistributor.SingletonResource instance = start.getResourceDistributor().getResource(resourceKey);
+        if (instance == null) {
+            instance = start.getResourceDistributor().setResource(resourceKey,
+                    new AccessTokenSigningKeyCache(start, key, Config.getConfig(start)));
+        }
+        return (AccessTokenSigningKeyCache) instance;
+    }
+
+    public void startRevalidating() {
+        if (!enabled) {
+            return;
+        }
+        BackgroundTasks tasks = BackgroundTasks.getInstance(start);
+        synchronized (lock) {
+            if (scheduledOn == tasks) {
+                return;
+            }
+            scheduledOn = tasks;
+        }
+        tasks.scheduleWithFixedDelay(start, "access token signing key cache revalidation", () -> {
+            if (current != null) {
+                revalidate();
+            }
+        }, revalidateInterval, revalidateInterval);
+    }
+
+    // newest first
+    public KeyValueInfo[] get() {
+        if (!enabled) {
+            return toArray(source.read(key).values);
+        }
+        Snapshot snapshot = current;
+        long now = System.currentTimeMillis();
+        if (snapshot != null && now - snapshot.validatedAt <= maxStaleness) {
+            if (now < snapshot.nextRotationAt || snapshot.validatedAt >= snapshot.nextRotationAt) {
+                hits.incrementAndGet();
+                return snapshot.keys.clone();
+            }
+            try {
+                return revalidate().keys.clone();
+            } catch (CouchbaseException e) {
+                staleReads.incrementAndGet();
+                return snapshot.keys.clone();
+            }
+        }
+        return load().keys.clone();
+    }
+
+    // called after this node has changed the list, so that its next read sees the change
+    public void refresh() {
+        if (!enabled) {
+            return;
+        }
+        synchronized (lock) {
+            current = null;
+            generation++;
+        }
+        try {
+            load();
+        } catch (CouchbaseException e) {
+            Logging.error(start, "Could not reload the access token signing keys", false, e);
+        }
+    }
+
+    private Snapshot revalidate() {
+        Snapshot snapshot = current;
+        long now = System.currentTimeMillis();
+        long cas;
+        try {
+            cas = source.getCas(key);
+        } catch (CouchbaseException e) {
+            failedRevalidations.incrementAndGet();
+            throw e;
+        }
+        revalidations.incrementAndGet();
+        if (snapshot == null || cas != snapshot.cas) {
+            return load();
+        }
+        Snapshot changed;
+        synchronized (lock) {
+            changed = current;
+            if (changed == snapshot) {
+                Snapshot next = new Snapshot(snapshot.keys, snapshot.cas, now);
+                current = next;
+                return next;
+            }
+        }
+        // the copy was replaced or dropped while we were comparing, so ours is not the one to extend
+        return changed == null ? load() : changed;
+    }
+
+    private Snapshot load() {
+        long startedIn;
+        synchronized (lock) {
+            startedIn = generation;
+        }
+        long now = System.currentTimeMillis();
+        KeyValueQueries.VersionedArrayKeyValue list = source.read(key);
+        loads.incrementAndGet();
+        Snapshot next = new Snapshot(toArray(list.values), list.cas, now);
+        synchronized (lock) {
+            if (startedIn != generation) {
+                return next;
+            }
+            // a CAS of 0 means the list was deleted, which is newer than any copy of it
+            Snapshot snapshot = current;
+            if (snapshot != null && list.cas != 0 && Long.compareUnsigned(list.cas, snapshot.cas) < 0) {
+                return snapshot;
+            }
+            current = next;
+            return next;
+        }
+    }
+
+    private static KeyValueInfo[] toArray(List<KeyValueInfo> keys) {
+        return keys.toArray(new KeyValueInfo[0]);
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    public long getRevalidationCount() {
+        return revalidations.get();
+    }
+
+    public long getFailedRevalidationCount() {
+        return failedRevalidations.get();
+    }
+
+    // reads that were served the last good list because it could not be revalidated
+    public long getStaleReadCount() {
+        return staleReads.get();
+    }
+
+    // where the list is read from
+    public interface Source {
+        KeyValueQueries.VersionedArrayKeyValue read(String key);
+
+        // 0 if there is no list
+        long getCas(String key);
+    }
+
+    private static class Snapshot {
+        final KeyValueInfo[] keys;
+        final long cas;
+        final long validatedAt;
+        final long nextRotationAt;
+
+        Snapshot(KeyValueInfo[] keys, long cas, long validatedAt) {
+            this.keys = keys;
+            this.cas = cas;
+            this.validatedAt = validatedAt;
+            this.nextRotationAt = keys.length < 2 ? Long.MAX_VALUE
+                    : keys[0].createdAtTime + (keys[0].createdAtTime - keys[1].createdAtTime);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.couchbase.cache;
+
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.pluginInterface.jwt.JWTSigningKeyInfo;
+import io.supertokens.storage.couchbase.ResourceDistributor;
+import io.supertokens.storage.couchbase.Start;
+import io.supertokens.storage.couchbase.config.Config;
+import io.supertokens.storage.couchbase.queries.JWTSigningQueries;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Per node copy of the JWT signing keys, tagged with the key set version it was read at. A read compares that with
+// the version counter, one KV get, and runs the query over the signing key collection only if the version has moved.
+// Within the staleness window after a check the copy is served without checking at all. The version is read before
+// the keys, so a copy never has fewer keys than its version promises. An invalidation starts a new generation, and a
+// read that started in an earlier one does not keep what it read, so that it cannot put back the copy that the
+// invalidation dropped.
+public class JWTSigningKeyCache extends ResourceDistributor.SingletonResource {
+
+    private static final String RESOURCE_KEY = "io.supertokens.storage.couchbase.cache.JWTSigningKeyCache";
+
+    private final Source source;
+    private final long stalenessWindow;
+
+    private final Object lock = new Object();
+    private volatile Snapshot current = null;
+    // bumped by every invalidate, guarded by lock
+    private long generation = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong versionChecks = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+
+    private JWTSigningKeyCache(Start start, long stalenessWindow) {
+        this(new Source() {
+            @Override
+            public long getKeySetVersion() {
+                return JWTSigningQueries.getKeySetVersion(start);
+            }
+
+            @Override
+            public List<JWTSigningKeyInfo> getKeys() throws StorageQueryException {
+                return JWTSigningQueries.getJWTSigningKeys_Transaction(start);
+            }
+        }, stalenessWindow);
+    }
+
+    // for tests, which give the keys through source instead of the cluster
+    public JWTSigningKeyCache(Source source, long stalenessWindow) {
+        this.source = source;
+        this.stalenessWindow = stalenessWindow;
+    }
+
+    public static JWTSigningKeyCache getInstance(Start start) {
+        ResourceDistributor.SingletonResource instance = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (instance == null) {
+            instance = start.getResourceDistributor().setResource(RESOURCE_KEY,
+                    new JWTSigningKeyCache(start, Config.getConfig(start).getJWTSigningKeyCacheStaleness()));
+        }
+        return (JWTSigningKeyCache) instance;
+    }
+
+    public List<JWTSigningKeyInfo> get() throws StorageQueryException {
+        long startedIn;
+        synchronized (lock) {
+            startedIn = generation;
+        }
+        Snapshot snapshot = current;
+        long now = System.currentTimeMillis();
+        if (snapshot != null && now - snapshot.checkedAt < stalenessWindow) {
+            hits.incrementAndGet();
+            return new ArrayList<>(snapshot.keys);
+        }
+        long version = source.getKeySetVersion();
+        versionChecks.incrementAndGet();
+        if (snapshot != null && snapshot.version == version) {
+            keep(startedIn, new Snapshot(snapshot.keys, version, now));
+            hits.incrementAndGet();
+            return new ArrayList<>(snapshot.keys);
+        }
+        List<JWTSigningKeyInfo> keys = source.getKeys();
+        loads.incrementAndGet();
+        keep(startedIn, new Snapshot(keys, version, now));
+        return new ArrayList<>(keys);
+    }
+
+    // called after this node has written a key or deleted all data, so that its next read runs the query
+    public void invalidate() {
+        synchronized (lock) {
+            current = null;
+            generation++;
+        }
+    }
+
+    private void keep(long startedIn, Snapshot next) {
+        synchronized (lock) {
+            if (startedIn == generation) {
+                current = next;
+            }
+        }
+    }
+
+    // reads served from the copy, with or without checking the version
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getVersionCheckCount() {
+        return versionChecks.get();
+    }
+
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    // where the keys and the key set version are read from
+    public interface Source {
+        long getKeySetVersion();
+
+        List<JWTSigningKeyInfo> getKeys() throws StorageQueryException;
+    }
+
+    private static class Snapshot {
+        final List<JWTSigningKeyInfo> keys;
+        final long version;
+        final long checkedAt;
+
+        Snapshot(List<JWTSigningKeyInfo> keys, long version, long checkedAt) {
+            this.keys = keys;
+            this.version = version;
+            this.checkedAt = checkedAt;
+        }
+    }
+}
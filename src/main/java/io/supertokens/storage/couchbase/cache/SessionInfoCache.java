@@ -0,0 +1,358 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.couchbase.cache;
+
+import io.supertokens.storage.couchbase.ResourceDistributor;
+import io.supertokens.storage.couchbase.Start;
+import io.supertokens.storage.couchbase.config.Config;
+import io.supertokens.storage.couchbase.config.CouchbaseConfig;
+import io.supertokens.storage.couchbase.queries.SessionQueries.SessionDocument;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Near-cache for session_info documents. Entries are weighed by their document size and kept in LRU order. When the
+// cache is full, a new entry is only admitted if it has been asked for more often than the entry it would evict
+// (TinyLFU style admission), so that a burst of one-off reads cannot flush the hot sessions out.
+// The cache is split by session handle into SEGMENTS independent segments, each with its own lock, LRU order,
+// frequency sketch and share of the size limit, so that reads of different sessions rarely wait on each other.
+// Every invalidation is numbered, and the number is recorded in a fixed set of stripes by session handle and by user.
+// A put carries the number that was current when its read started, and is dropped if its stripes have been
+// invalidated since, so that a read racing a write cannot put back the version the write replaced.
+// Entries are not checked against the cluster when they are served, as that would cost the round trip the cache is
+// there to save. Only writes through this node invalidate them, so a write on another node is seen here once the
+// entry's TTL has run out.
+public class SessionInfoCache extends ResourceDistributor.SingletonResource {
+
+    private static final String RESOURCE_KEY = "io.supertokens.storage.couchbase.cache.SessionInfoCache";
+
+    // rough per entry overhead of the map node, the key and the SessionInfo object itself
+    private static final int ENTRY_OVERHEAD_IN_BYTES = 256;
+    private static final int INVALIDATION_STRIPES = 4096;
+    private static final int SEGMENTS = 16;
+
+    private final long maxWeight;
+    private final long ttl;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLongArray handleInvalidatedAt = new AtomicLongArray(INVALIDATION_STRIPES);
+    private final AtomicLongArray userInvalidatedAt = new AtomicLongArray(INVALIDATION_STRIPES);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong stalePuts = new AtomicLong();
+
+    SessionInfoCache(long maxWeight, long ttl) {
+        this.maxWeight = maxWeight;
+        this.ttl = ttl;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxWeight / SEGMENTS);
+        }
+    }
+
+    public static SessionInfoCache getInstance(Start start) {
+        ResourceDistributor.SingletonResource instance = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (instance == null) {
+            CouchbaseConfig config = Config.getConfig(start);
+            instance = start.getResourceDistributor().setResource(RESOURCE_KEY,
+                    new SessionInfoCache(config.getSessionCacheMaxSizeBytes(), config.getSessionCacheTTL()));
+        }
+        return (SessionInfoCache) instance;
+    }
+
+    public boolean isEnabled() {
+        return maxWeight > 0;
+    }
+
+    public SessionDocument get(String sessionHandle) {
+        if (!isEnabled()) {
+            return null;
+        }
+        SessionDocument document = segmentOf(sessionHandle).get(sessionHandle);
+        if (document == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        // callers may change the session's JSON trees, which must not change the cached entry
+        return document.copy();
+    }
+
+    // to be taken before the read whose result is then given to put
+    public long getReadStamp() {
+        return invalidations.get();
+    }
+
+    // the document is kept as is, so it must not be handed to a caller that may change it
+    public void put(SessionDocument document, long readStamp) {
+        if (!isEnabled()) {
+            return;
+        }
+        segmentOf(document.info.sessionHandle).put(document, readStamp);
+    }
+
+    // the stripe is stamped before the segment is touched, under the segment's lock, so a put of this session either
+    // lands before and is removed here, or comes after and sees the stamp
+    public void invalidate(String sessionHandle) {
+        Segment segment = segmentOf(sessionHandle);
+        synchronized (segment) {
+            stamp(handleInvalidatedAt, stripe(sessionHandle));
+            segment.remove(sessionHandle);
+        }
+    }
+
+    // the user's stripe is stamped before any segment is cleaned, so a put that runs after a segment was cleaned sees
+    // the stamp, and one that ran before was cleaned with it
+    public void invalidateAllOfUser(String userId) {
+        stamp(userInvalidatedAt, stripe(userId));
+        for (Segment segment : segments) {
+            segment.removeAllOfUser(userId);
+        }
+    }
+
+    public void clear() {
+        long stamp = invalidations.incrementAndGet();
+        for (int i = 0; i < INVALIDATION_STRIPES; i++) {
+            handleInvalidatedAt.accumulateAndGet(i, stamp, Math::max);
+        }
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getRejectionCount() {
+        return rejections.get();
+    }
+
+    // puts dropped because their read started before an invalidation of the same session or user
+    public long getStalePutCount() {
+        return stalePuts.get();
+    }
+
+    public long getWeight() {
+        long weight = 0;
+        for (Segment segment : segments) {
+            weight += segment.getWeight();
+        }
+        return weight;
+    }
+
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.getSize();
+        }
+        return size;
+    }
+
+    private Segment segmentOf(String sessionHandle) {
+        int hash = sessionHandle.hashCode();
+        // spread the high bits, since stripe() already uses the low ones
+        return segments[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % SEGMENTS];
+    }
+
+    private void stamp(AtomicLongArray stripes, int stripe) {
+        stripes.accumulateAndGet(stripe, invalidations.incrementAndGet(), Math::max);
+    }
+
+    private static int stripe(String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % INVALIDATION_STRIPES;
+    }
+
+    private class Segment {
+        private final long maxWeight;
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final FrequencySketch sketch = new FrequencySketch(FrequencySketch.WIDTH / SEGMENTS);
+        private long weight = 0;
+
+        Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        synchronized SessionDocument get(String sessionHandle) {
+            sketch.increment(sessionHandle);
+            Entry entry = entries.get(sessionHandle);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.validUntil <= System.currentTimeMillis()) {
+                remove(sessionHandle);
+                return null;
+            }
+            return entry.document;
+        }
+
+        synchronized void put(SessionDocument document, long readStamp) {
+            String sessionHandle = document.info.sessionHandle;
+            if (handleInvalidatedAt.get(stripe(sessionHandle)) > readStamp
+                    || userInvalidatedAt.get(stripe(document.info.userId)) > readStamp) {
+                stalePuts.incrementAndGet();
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long validUntil = Math.min(now + ttl, document.info.expiry);
+            int entryWeight = document.sizeInBytes + ENTRY_OVERHEAD_IN_BYTES;
+            if (validUntil <= now || entryWeight > maxWeight) {
+                return;
+            }
+
+            remove(sessionHandle);
+            if (!makeRoomFor(sessionHandle, entryWeight)) {
+                rejections.incrementAndGet();
+                return;
+            }
+            entries.put(sessionHandle, new Entry(document, entryWeight, validUntil));
+            weight += entryWeight;
+        }
+
+        synchronized void remove(String sessionHandle) {
+            Entry removed = entries.remove(sessionHandle);
+            if (removed != null) {
+                weight -= removed.weight;
+            }
+        }
+
+        synchronized void removeAllOfUser(String userId) {
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next().getValue();
+                if (entry.document.info.userId.equals(userId)) {
+                    weight -= entry.weight;
+                    it.remove();
+                }
+            }
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            weight = 0;
+        }
+
+        synchronized long getWeight() {
+            return weight;
+        }
+
+        synchronized int getSize() {
+            return entries.size();
+        }
+
+        private boolean makeRoomFor(String sessionHandle, int entryWeight) {
+            long now = System.currentTimeMillis();
+            int candidateFrequency = sketch.frequency(sessionHandle);
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (weight + entryWeight > maxWeight && it.hasNext()) {
+                Map.Entry<String, Entry> victim = it.next();
+                boolean expired = victim.getValue().validUntil <= now;
+                if (!expired && sketch.frequency(victim.getKey()) >= candidateFrequency) {
+                    return false;
+                }
+                weight -= victim.getValue().weight;
+                it.remove();
+                evictions.incrementAndGet();
+            }
+            return weight + entryWeight <= maxWeight;
+        }
+    }
+
+    private static class Entry {
+        final SessionDocument document;
+        final int weight;
+        final long validUntil;
+
+        Entry(SessionDocument document, int weight, long validUntil) {
+            this.document = document;
+            this.weight = weight;
+            this.validUntil = validUntil;
+        }
+    }
+
+    // Count-min sketch with 4 rows of small counters. All counters are halved every width * 10 increments so that
+    // keys that were popular a while ago do not stay in the cache forever. Not thread safe.
+    static class FrequencySketch {
+        // across all segments
+        static final int WIDTH = 1 << 14;
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+        private final int width;
+        private final int resetSampleSize;
+        private final byte[][] table;
+        private int additions = 0;
+
+        // width must be a power of two
+        FrequencySketch(int width) {
+            this.width = width;
+            this.resetSampleSize = width * 10;
+            this.table = new byte[DEPTH][width];
+        }
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            for (int i = 0; i < DEPTH; i++) {
+                int index = indexOf(hash, i);
+                if (table[i][index] < MAX_COUNT) {
+                    table[i][index]++;
+                }
+            }
+            if (++additions >= resetSampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int min = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, table[i][indexOf(hash, i)]);
+            }
+            return min;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+            h ^= h >>> 16;
+            return h & (width - 1);
+        }
+
+        private void reset() {
+            for (byte[] row : table) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = (byte) (row[i] >> 1);
+                }
+            }
+            additions = 0;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.couchbase.cache;
+
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.couchbase.ResourceDistributor;
+import io.supertokens.storage.couchbase.Start;
+import io.supertokens.storage.couchbase.config.Config;
+import io.supertokens.storage.couchbase.queries.SessionQueries.SessionDocument;
+import io.supertokens.storage.couchbase.utils.SingleFlight;
+
+// Folds concurrent reads of the same session handle into one KV get. Transactional reads are only ever folded with
+// other transactional reads, since a plain read may be answered by a replica. Each caller gets its own copy of the
+// document, so that one request changing the session's JSON trees does not change them for the others.
+public class SessionReadCoalescer extends ResourceDistributor.SingletonResource {
+
+    private static final String RESOURCE_KEY = "io.supertokens.storage.couchbase.cache.SessionReadCoalescer";
+
+    private final boolean coalesceTransactionReads;
+    private final SingleFlight<String, SessionDocument> reads = new SingleFlight<>(SessionDocument::copy);
+    private final SingleFlight<String, SessionDocument> transactionReads = new SingleFlight<>(SessionDocument::copy);
+
+    private SessionReadCoalescer(boolean coalesceTransactionReads) {
+        this.coalesceTransactionReads = coalesceTransactionReads;
+    }
+
+    public static SessionReadCoalescer getInstance(Start start) {
+        ResourceDistributor.SingletonResource instance = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (instance == null) {
+            instance = start.getResourceDistributor().setResource(RESOURCE_KEY,
+                    new SessionReadCoalescer(Config.getConfig(start).isSessionTransactionReadsCoalesced()));
+        }
+        return (SessionReadCoalescer) instance;
+    }
+
+    public SessionDocument read(String sessionHandle, SingleFlight.Loader<SessionDocument> loader)
+            throws StorageQueryException {
+        return reads.load(sessionHandle, loader);
+    }
+
+    public SessionDocument readForTransaction(String sessionHandle, SingleFlight.Loader<SessionDocument> loader)
+            throws StorageQueryException {
+        if (!coalesceTransactionReads) {
+            return loader.load();
+        }
+        return transactionReads.load(sessionHandle, loader);
+    }
+
+    public long getCallCount() {
+        return reads.getCallCount() + transactionReads.getCallCount();
+    }
+
+    public long getFoldedCount() {
+        return reads.getFoldedCount() + transactionReads.getFoldedCount();
+    }
+}
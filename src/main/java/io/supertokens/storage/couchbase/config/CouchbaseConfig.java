@@ -26,6 +26,7 @@ import io.supertokens.pluginInterface.exceptions.InvalidConfigException;
 
 import java.net.URI;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -57,6 +58,90 @@ public class CouchbaseConfig {
     @JsonProperty
     private String couchbase_collection_names_prefix = "";
 
+    @JsonProperty
+    private long couchbase_session_cache_max_size_bytes = 0;
+
+    @JsonProperty
+    private long couchbase_session_cache_ttl_ms = 5000;
+
+    @JsonProperty
+    private boolean couchbase_session_hedged_reads_enabled = false;
+
+    @JsonProperty
+    private double couchbase_session_hedge_percentile = 95;
+
+    @JsonProperty
+    private long couchbase_session_hedge_min_delay_ms = 5;
+
+    @JsonProperty
+    private boolean couchbase_session_transaction_reads_coalesced = true;
+
+    @JsonProperty
+    private String couchbase_session_storage_layout = "single";
+
+    @JsonProperty
+    private String couchbase_session_payload_collection_name = null;
+
+    @JsonProperty
+    private int couchbase_session_sweeper_parallelism = 4;
+
+    @JsonProperty
+    private int couchbase_session_sweeper_batch_size = 500;
+
+    @JsonProperty
+    private boolean couchbase_session_expiry_index_enabled = false;
+
+    @JsonProperty
+    private long couchbase_session_expiry_index_repair_interval_ms = 24 * 60 * 60 * 1000;
+
+    @JsonProperty
+    private boolean couchbase_maintenance_lease_enabled = false;
+
+    @JsonProperty
+    private long couchbase_maintenance_lease_duration_ms = 30 * 1000;
+
+    @JsonProperty
+    private boolean couchbase_maintenance_throttle_enabled = false;
+
+    @JsonProperty
+    private long couchbase_maintenance_throttle_target_latency_ms = 50;
+
+    @JsonProperty
+    private int couchbase_session_delete_concurrency = 32;
+
+    @JsonProperty
+    private boolean couchbase_session_user_index_enabled = false;
+
+    @JsonProperty
+    private long couchbase_session_user_index_reconcile_interval_ms = 6 * 60 * 60 * 1000;
+
+    @JsonProperty
+    private boolean couchbase_index_provisioning_enabled = false;
+
+    @JsonProperty
+    private long couchbase_index_build_timeout_ms = 60 * 1000;
+
+    @JsonProperty
+    private boolean couchbase_query_plan_advisor_enabled = false;
+
+    @JsonProperty
+    private String couchbase_query_scan_consistency = "";
+
+    @JsonProperty
+    private int couchbase_query_page_size = 1000;
+
+    @JsonProperty
+    private boolean couchbase_access_token_signing_key_cache_enabled = false;
+
+    @JsonProperty
+    private long couchbase_access_token_signing_key_cache_revalidate_interval_ms = 5000;
+
+    @JsonProperty
+    private long couchbase_access_token_signing_key_cache_max_staleness_ms = 60 * 1000;
+
+    @JsonProperty
+    private long couchbase_jwt_signing_key_cache_staleness_ms = 0;
+
     public static Set<String> getValidFields() {
         io.supertokens.storage.couchbase.config.CouchbaseConfig config = new io.supertokens.storage.couchbase.config.CouchbaseConfig();
         JsonObject configObj = new GsonBuilder().serializeNulls().create().toJsonTree(config).getAsJsonObject();
@@ -138,10 +223,135 @@ public class CouchbaseConfig {
         return addPrefixToTableName(tableName);
     }
 
+    public String getSessionPayloadCollection() {
+        String tableName = "session_payload";
+        if (couchbase_session_payload_collection_name != null) {
+            return couchbase_session_payload_collection_name;
+        }
+        return addPrefixToTableName(tableName);
+    }
+
     public String getJWTSigningKeysCollection() {
         return addPrefixToTableName("jwt_signing_keys");
     }
 
+    public long getSessionCacheMaxSizeBytes() {
+        return couchbase_session_cache_max_size_bytes;
+    }
+
+    public long getSessionCacheTTL() {
+        return couchbase_session_cache_ttl_ms;
+    }
+
+    public boolean isSessionHedgedReadsEnabled() {
+        return couchbase_session_hedged_reads_enabled;
+    }
+
+    public double getSessionHedgePercentile() {
+        return couchbase_session_hedge_percentile;
+    }
+
+    public long getSessionHedgeMinDelay() {
+        return couchbase_session_hedge_min_delay_ms;
+    }
+
+    public boolean isSessionTransactionReadsCoalesced() {
+        return couchbase_session_transaction_reads_coalesced;
+    }
+
+    public boolean isSessionPayloadSplit() {
+        return couchbase_session_storage_layout.equals("split");
+    }
+
+    public int getSessionSweeperParallelism() {
+        return couchbase_session_sweeper_parallelism;
+    }
+
+    public int getSessionSweeperBatchSize() {
+        return couchbase_session_sweeper_batch_size;
+    }
+
+    public boolean isSessionExpiryIndexEnabled() {
+        return couchbase_session_expiry_index_enabled;
+    }
+
+    public long getSessionExpiryIndexRepairInterval() {
+        return couchbase_session_expiry_index_repair_interval_ms;
+    }
+
+    public boolean isMaintenanceLeaseEnabled() {
+        return couchbase_maintenance_lease_enabled;
+    }
+
+    public long getMaintenanceLeaseDuration() {
+        return couchbase_maintenance_lease_duration_ms;
+    }
+
+    public boolean isMaintenanceThrottleEnabled() {
+        return couchbase_maintenance_throttle_enabled;
+    }
+
+    public long getMaintenanceThrottleTargetLatency() {
+        return couchbase_maintenance_throttle_target_latency_ms;
+    }
+
+    public int getSessionDeleteConcurrency() {
+        return couchbase_session_delete_concurrency;
+    }
+
+    public boolean isSessionUserIndexEnabled() {
+        return couchbase_session_user_index_enabled;
+    }
+
+    public long getSessionUserIndexReconcileInterval() {
+        return couchbase_session_user_index_reconcile_interval_ms;
+    }
+
+    public boolean isIndexProvisioningEnabled() {
+        return couchbase_index_provisioning_enabled;
+    }
+
+    public long getIndexBuildTimeout() {
+        return couchbase_index_build_timeout_ms;
+    }
+
+    public boolean isQueryPlanAdvisorEnabled() {
+        return couchbase_query_plan_advisor_enabled;
+    }
+
+    // statement name to one of not_bounded, at_plus or request_plus
+    public Map<String, String> getQueryScanConsistencies() {
+        Map<String, String> consistencies = new LinkedHashMap<>();
+        for (String entry : couchbase_query_scan_consistency.split(",")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            String[] parts = entry.split(":", -1);
+            consistencies.put(parts[0].trim(), parts.length == 2 ? parts[1].trim() : "");
+        }
+        return consistencies;
+    }
+
+    public int getQueryPageSize() {
+        return couchbase_query_page_size;
+    }
+
+    public boolean isAccessTokenSigningKeyCacheEnabled() {
+        return couchbase_access_token_signing_key_cache_enabled;
+    }
+
+    public long getAccessTokenSigningKeyCacheRevalidateInterval() {
+        return couchbase_access_token_signing_key_cache_revalidate_interval_ms;
+    }
+
+    public long getAccessTokenSigningKeyCacheMaxStaleness() {
+        return couchbase_access_token_signing_key_cache_max_staleness_ms;
+    }
+
+    public long getJWTSigningKeyCacheStaleness() {
+        return couchbase_jwt_signing_key_cache_staleness_ms;
+    }
+
     private String addPrefixToTableName(String tableName) {
         if (!couchbase_collection_names_prefix.trim().isEmpty()) {
             return couchbase_collection_names_prefix.trim() + "_" + tableName;
@@ -164,5 +374,87 @@ public class CouchbaseConfig {
                     "The provided couchbase connection URI has an incorrect format. Please use a format like "
                             + "couchbase+srv://[user[:[password]]@]host[:port][/dbname][?attr1=val1&attr2=val2...");
         }
+
+        if (couchbase_session_cache_max_size_bytes < 0) {
+            throw new InvalidConfigException(
+                    "'couchbase_session_cache_max_size_bytes' must be >= 0. Please set it to 0 to disable the cache");
+        }
+
+        if (couchbase_session_cache_ttl_ms <= 0) {
+            throw new InvalidConfigException("'couchbase_session_cache_ttl_ms' must be > 0");
+        }
+
+        if (couchbase_session_hedge_percentile <= 0 || couchbase_session_hedge_percentile > 100) {
+            throw new InvalidConfigException("'couchbase_session_hedge_percentile' must be in the range (0, 100]");
+        }
+
+        if (couchbase_session_hedge_min_delay_ms < 0) {
+            throw new InvalidConfigException("'couchbase_session_hedge_min_delay_ms' must be >= 0");
+        }
+
+        if (!couchbase_session_storage_layout.equals("single") && !couchbase_session_storage_layout.equals("split")) {
+            throw new InvalidConfigException(
+                    "'couchbase_session_storage_layout' must be either \"single\" or \"split\"");
+        }
+
+        if (couchbase_session_sweeper_parallelism <= 0) {
+            throw new InvalidConfigException("'couchbase_session_sweeper_parallelism' must be > 0");
+        }
+
+        if (couchbase_session_sweeper_batch_size <= 0) {
+            throw new InvalidConfigException("'couchbase_session_sweeper_batch_size' must be > 0");
+        }
+
+        if (couchbase_session_expiry_index_repair_interval_ms <= 0) {
+            throw new InvalidConfigException("'couchbase_session_expiry_index_repair_interval_ms' must be > 0");
+        }
+
+        if (couchbase_maintenance_lease_duration_ms <= 0) {
+            throw new InvalidConfigException("'couchbase_maintenance_lease_duration_ms' must be > 0");
+        }
+
+        if (couchbase_maintenance_throttle_target_latency_ms <= 0) {
+            throw new InvalidConfigException("'couchbase_maintenance_throttle_target_latency_ms' must be > 0");
+        }
+
+        if (couchbase_session_delete_concurrency <= 0) {
+            throw new InvalidConfigException("'couchbase_session_delete_concurrency' must be > 0");
+        }
+
+        if (couchbase_session_user_index_reconcile_interval_ms <= 0) {
+            throw new InvalidConfigException("'couchbase_session_user_index_reconcile_interval_ms' must be > 0");
+        }
+
+        if (couchbase_index_build_timeout_ms <= 0) {
+            throw new InvalidConfigException("'couchbase_index_build_timeout_ms' must be > 0");
+        }
+
+        for (String consistency : getQueryScanConsistencies().values()) {
+            if (!consistency.equals("not_bounded") && !consistency.equals("at_plus")
+                    && !consistency.equals("request_plus")) {
+                throw new InvalidConfigException("'couchbase_query_scan_consistency' must be a comma separated list "
+                        + "of <statement>:<consistency>, where consistency is \"not_bounded\", \"at_plus\" or "
+                        + "\"request_plus\"");
+            }
+        }
+
+        if (couchbase_query_page_size <= 0) {
+            throw new InvalidConfigException("'couchbase_query_page_size' must be > 0");
+        }
+
+        if (couchbase_access_token_signing_key_cache_revalidate_interval_ms <= 0) {
+            throw new InvalidConfigException(
+                    "'couchbase_access_token_signing_key_cache_revalidate_interval_ms' must be > 0");
+        }
+
+        if (couchbase_access_token_signing_key_cache_max_staleness_ms
+                < couchbase_access_token_signing_key_cache_revalidate_interval_ms) {
+            throw new InvalidConfigException("'couchbase_access_token_signing_key_cache_max_staleness_ms' must be >= "
+                    + "'couchbase_access_token_signing_key_cache_revalidate_interval_ms'");
+        }
+
+        if (couchbase_jwt_signing_key_cache_staleness_ms < 0) {
+            throw new InvalidConfigException("'couchbase_jwt_signing_key_cache_staleness_ms' must be >= 0");
+        }
     }
 }
\ No newline at end of file
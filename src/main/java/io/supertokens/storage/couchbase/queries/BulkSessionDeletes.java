@@ -0,0 +1,101 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.couchbase.queries;
+
+import com.couchbase.client.core.error.DocumentNotFoundException;
+import com.couchbase.client.java.Collection;
+import com.couchbase.client.java.kv.MutationResult;
+import io.supertokens.storage.couchbase.ResourceDistributor;
+import io.supertokens.storage.couchbase.Start;
+import io.supertokens.storage.couchbase.config.Config;
+import io.supertokens.storage.couchbase.utils.LatencyHistogram;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+// Removes a batch of documents by key with up to the configured number of KV removes in flight at once, and returns
+// when the last of them is done. Used for deleteSession, which gets all handles of a user when they log out
+// everywhere, and for the payload documents of the split layout.
+public class BulkSessionDeletes extends ResourceDistributor.SingletonResource {
+
+    private static final String RESOURCE_KEY = "io.supertokens.storage.couchbase.queries.BulkSessionDeletes";
+
+    private final int maxConcurrency;
+    private final LatencyHistogram batchLatency = new LatencyHistogram();
+    private final AtomicLong batches = new AtomicLong();
+    private volatile int lastConcurrency = 0;
+
+    private BulkSessionDeletes(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    public static BulkSessionDeletes getInstance(Start start) {
+        ResourceDistributor.SingletonResource instance = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (instance == null) {
+            instance = start.getResourceDistributor().setResource(RESOURCE_KEY,
+                    new BulkSessionDeletes(Config.getConfig(start).getSessionDeleteConcurrency()));
+        }
+        return (BulkSessionDeletes) instance;
+    }
+
+    // returns the number of documents that were removed. Keys that do not exist (any more) are not counted, and a key
+    // that is given more than once is removed and counted once.
+    int remove(Collection collection, String[] ids) {
+        return remove(collection, ids, null);
+    }
+
+    // same as above, and gives the key and result of each remove that found its document to onRemoved
+    int remove(Collection collection, String[] ids, BiConsumer<String, MutationResult> onRemoved) {
+        if (ids.length == 0) {
+            return 0;
+        }
+        long startTime = System.currentTimeMillis();
+        int concurrency = Math.min(ids.length, maxConcurrency);
+        Long removed = Flux.fromArray(ids)
+                .distinct()
+                .flatMap(id -> collection.reactive().remove(id)
+                        .map(result -> {
+                            if (onRemoved != null) {
+                                onRemoved.accept(id, result);
+                            }
+                            return 1L;
+                        })
+                        .onErrorResume(DocumentNotFoundException.class, e -> Mono.just(0L)), concurrency)
+                .reduce(0L, Long::sum)
+                .block();
+        batchLatency.record(System.currentTimeMillis() - startTime);
+        batches.incrementAndGet();
+        lastConcurrency = concurrency;
+        return removed == null ? 0 : removed.intValue();
+    }
+
+    // removes that were allowed in flight at once for the last batch
+    public int getLastConcurrency() {
+        return lastConcurrency;
+    }
+
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    // latency in ms of a whole batch, -1 if no batch has run yet
+    public long getBatchLatencyPercentile(double percentile) {
+        return batchLatency.getPercentile(percentile);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.couchbase.queries;
+
+import com.couchbase.client.core.error.CasMismatchException;
+import com.couchbase.client.core.error.DocumentExistsException;
+import com.couchbase.client.core.error.DocumentNotFoundException;
+import com.couchbase.client.java.Collection;
+import com.couchbase.client.java.kv.GetOptions;
+import com.couchbase.client.java.kv.GetResult;
+import com.couchbase.client.java.kv.InsertOptions;
+import com.couchbase.client.java.kv.MutateInOptions;
+import com.couchbase.client.java.kv.MutateInResult;
+import com.couchbase.client.java.kv.MutateInSpec;
+import com.couchbase.client.java.kv.ReplaceOptions;
+import com.google.gson.JsonObject;
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.couchbase.ResourceDistributor;
+import io.supertokens.storage.couchbase.Start;
+import io.supertokens.storage.couchbase.utils.GsonTranscoder;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Optimistic read-check-write on top of KV CAS, shared by the *_Transaction storage methods. An attempt reads what it
+// needs together with its CAS and then writes conditionally on that CAS. If someone else wrote in between, the write
+// fails with a conflict and the whole attempt is run again after a jittered backoff, up to MAX_ATTEMPTS times. Any
+// other failure is not retried and goes straight to the caller.
+public class CasEngine extends ResourceDistributor.SingletonResource {
+
+    private static final String RESOURCE_KEY = "io.supertokens.storage.couchbase.queries.CasEngine";
+
+    static final int MAX_ATTEMPTS = 8;
+    private static final long BASE_BACKOFF_MS = 2;
+    private static final long MAX_BACKOFF_MS = 100;
+
+    private final ConcurrentHashMap<String, Metrics> metrics = new ConcurrentHashMap<>();
+
+    private CasEngine() {
+    }
+
+    public static CasEngine getInstance(Start start) {
+        ResourceDistributor.SingletonResource instance = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (instance == null) {
+            instance = start.getResourceDistributor().setResource(RESOURCE_KEY, new CasEngine());
+        }
+        return (CasEngine) instance;
+    }
+
+    public <T> T run(String operation, Attempt<T> attempt) throws StorageQueryException {
+        Metrics operationMetrics = getMetrics(operation);
+        for (int attemptNumber = 1; ; attemptNumber++) {
+            operationMetrics.attempts.incrementAndGet();
+            try {
+                return attempt.run();
+            } catch (ConflictException | CasMismatchException | DocumentExistsException e) {
+                operationMetrics.conflicts.incrementAndGet();
+                if (attemptNumber >= MAX_ATTEMPTS) {
+                    operationMetrics.giveUps.incrementAndGet();
+                    throw new StorageQueryException(e);
+                }
+                backOff(attemptNumber);
+            } catch (StorageQueryException | RuntimeException e) {
+                operationMetrics.failures.incrementAndGet();
+                throw e;
+            }
+        }
+    }
+
+    public Metrics getMetrics(String operation) {
+        return metrics.computeIfAbsent(operation, k -> new Metrics());
+    }
+
+    // returns null if the document does not exist. Always reads from the active node, since the CAS is used for a write
+    static Versioned read(Collection collection, String id) {
+        try {
+            GetResult result = collection.get(id, GetOptions.getOptions().transcoder(GsonTranscoder.INSTANCE));
+            return new Versioned(result.contentAs(JsonObject.class), result.cas());
+        } catch (DocumentNotFoundException e) {
+            return null;
+        }
+    }
+
+    // the following fail with a conflict if the document changed (or appeared, or disappeared) since it was read
+
+    static void insert(Collection collection, String id, JsonObject content) {
+        try {
+            collection.insert(id, content, InsertOptions.insertOptions().transcoder(GsonTranscoder.INSTANCE));
+        } catch (DocumentExistsException e) {
+            throw new ConflictException(e);
+        }
+    }
+
+    static void replace(Collection collection, String id, JsonObject content, long cas) {
+        try {
+            collection.replace(id, content,
+                    ReplaceOptions.replaceOptions().cas(cas).transcoder(GsonTranscoder.INSTANCE));
+        } catch (CasMismatchException | DocumentNotFoundException e) {
+            throw new ConflictException(e);
+        }
+    }
+
+    static MutateInResult mutate(Collection collection, String id, List<MutateInSpec> specs, long cas,
+            MutateInOptions options) {
+        try {
+            return collection.mutateIn(id, specs, options.cas(cas));
+        } catch (CasMismatchException | DocumentNotFoundException e) {
+            throw new ConflictException(e);
+        }
+    }
+
+    private static void backOff(int attemptNumber) throws StorageQueryException {
+        // full jitter: anywhere between 0 and an exponentially growing cap, so that writers that collided once do not
+        // collide again in lockstep
+        long cap = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attemptNumber, 16));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageQueryException(e);
+        }
+    }
+
+    public interface Attempt<T> {
+        T run() throws StorageQueryException;
+    }
+
+    public static class Versioned {
+        public final JsonObject content;
+        public final long cas;
+
+        Versioned(JsonObject content, long cas) {
+            this.content = content;
+            this.cas = cas;
+        }
+    }
+
+    public static class Metrics {
+        private final AtomicLong attempts = new AtomicLong();
+        private final AtomicLong conflicts = new AtomicLong();
+        private final AtomicLong giveUps = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+
+        public long getAttempts() {
+            return attempts.get();
+        }
+
+        public long getConflicts() {
+            return conflicts.get();
+        }
+
+        public long getGiveUps() {
+            return giveUps.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+    }
+
+    private static class ConflictException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ConflictException(Throwable cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,539 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.couchbase.queries;
+
+import com.couchbase.client.core.error.CasMismatchException;
+import com.couchbase.client.core.error.DocumentNotFoundException;
+import com.couchbase.client.core.error.FeatureNotAvailableException;
+import com.couchbase.client.java.AsyncCollection;
+import com.couchbase.client.java.Collection;
+import com.couchbase.client.java.kv.LookupInResult;
+import com.couchbase.client.java.kv.LookupInSpec;
+import com.couchbase.client.java.kv.RemoveOptions;
+import com.couchbase.client.java.kv.ScanOptions;
+import com.couchbase.client.java.kv.ScanResult;
+import com.couchbase.client.java.kv.ScanType;
+import com.couchbase.client.java.kv.UpsertOptions;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.couchbase.ConnectionPool;
+import io.supertokens.storage.couchbase.Lease;
+import io.supertokens.storage.couchbase.ResourceDistributor;
+import io.supertokens.storage.couchbase.Start;
+import io.supertokens.storage.couchbase.config.Config;
+import io.supertokens.storage.couchbase.config.CouchbaseConfig;
+import io.supertokens.storage.couchbase.output.Logging;
+import io.supertokens.storage.couchbase.utils.GsonTranscoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// Deletes expired sessions with KV range scans instead of one query over the whole session info collection. The
+// keyspace is split into the 16 one character prefixes of session handles, which are scanned in parallel by a bounded
+// pool of workers. Every range scan is fanned out by the server to all vBuckets, so the partitions are kept few and
+// coarse. Scans return document keys only, and expires_at and user_id of each batch of keys are then read with
+// sub-document lookups, so session_data never crosses the network. The expired ones are removed with the CAS the
+// lookup returned, so that a session refreshed in between is kept.
+// Range scans need Couchbase Server 7.6. On an older cluster the keys are instead streamed from a query that is
+// covered by idx_session_info_user_id_id_expires_at, without partitions or checkpoints.
+// Sessions whose handle is not generated by the core (and so does not start with hex characters) are not scanned,
+// they are left to their document expiry.
+//
+// Finished partitions are recorded in a checkpoint document in the key value collection, so a sweep that was
+// interrupted (restart, storage layer disabled, lease lost) picks up where it left off. With the maintenance lease
+// enabled only one node sweeps at a time, and the others skip their run. Batch size and the number of workers that
+// remove at once follow MaintenanceThrottle.
+//
+// With the expiry index enabled, a sweep only visits the index slots that are due, and the full scan above only runs
+// once per repair interval, to remove what the index missed and to add the sessions it finds back into their slots.
+public class ExpiredSessionSweeper extends ResourceDistributor.SingletonResource {
+
+    private static final String RESOURCE_KEY = "io.supertokens.storage.couchbase.queries.ExpiredSessionSweeper";
+
+    private static final String LEASE_NAME = "expired_session_sweep";
+
+    static final String CHECKPOINT_KEY = "expired_session_sweep_checkpoint";
+    // a checkpoint older than this is from a sweep that was abandoned, and is ignored
+    private static final long MAX_CHECKPOINT_AGE = 24 * 60 * 60 * 1000;
+    private static final String CHECKPOINT_STARTED_AT = "started_at";
+    private static final String CHECKPOINT_DONE = "done";
+
+    // how long a worker waits for a batch slot before it checks the throttle's concurrency again
+    private static final long MAX_SLOT_WAIT = 100;
+
+    private static final List<LookupInSpec> SWEEP_LOOKUP_SPECS = Arrays.asList(
+            LookupInSpec.get(SessionQueries.EXPIRES_AT), LookupInSpec.get(SessionQueries.USER_ID));
+
+    private final Start start;
+    private final int parallelism;
+    private final int batchSize;
+    private final long repairInterval;
+    private final MaintenanceThrottle throttle;
+
+    // batches of the full scan that are being removed right now, across all workers
+    private final Object batchSlots = new Object();
+    private int activeBatches = 0;
+
+    // set once a range scan has been refused by the cluster
+    private volatile boolean rangeScansUnsupported = false;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong removed = new AtomicLong();
+    private volatile long lastSweepDuration = -1;
+    private volatile double lastSweepThroughput = 0;
+
+    private ExpiredSessionSweeper(Start start, CouchbaseConfig config) {
+        this.start = start;
+        this.parallelism = config.getSessionSweeperParallelism();
+        this.batchSize = config.getSessionSweeperBatchSize();
+        this.repairInterval = config.getSessionExpiryIndexRepairInterval();
+        this.throttle = MaintenanceThrottle.getInstance(start);
+    }
+
+    public static ExpiredSessionSweeper getInstance(Start start) {
+        ResourceDistributor.SingletonResource instance = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (instance == null) {
+            instance = start.getResourceDistributor().setResource(RESOURCE_KEY,
+                    new ExpiredSessionSweeper(start, Config.getConfig(start)));
+        }
+        return (ExpiredSessionSweeper) instance;
+    }
+
+    static List<String> getPartitions() {
+        return Arrays.asList(SessionQueries.SESSION_HANDLE_PREFIXES);
+    }
+
+    public void sweep() throws StorageQueryException {
+        if (!running.compareAndSet(false, true)) {
+            // a sweep started earlier on this node is still going
+            return;
+        }
+        try {
+            // when another node holds the lease it is sweeping right now, and this node has nothing to do
+            getLease().runIfAcquired(() -> {
+                if (SessionExpiryIndex.isEnabled(start)) {
+                    sweepIndexed();
+                } else {
+                    doSweep(false);
+                }
+                return true;
+            });
+        } finally {
+            running.set(false);
+        }
+    }
+
+    public Lease getLease() {
+        return ConnectionPool.getLease(start, LEASE_NAME);
+    }
+
+    private boolean canContinue() {
+        return start.isStorageLayerEnabled() && getLease().isHeld();
+    }
+
+    private void sweepIndexed() throws StorageQueryException {
+        SessionExpiryIndex.Cursor cursor = SessionExpiryIndex.loadCursor(start);
+        sweepDueSlots(cursor);
+        long now = System.currentTimeMillis();
+        if (now - cursor.lastRepair >= repairInterval && doSweep(true)) {
+            cursor.lastRepair = now;
+            SessionExpiryIndex.saveCursor(start, cursor);
+        }
+    }
+
+    private void sweepDueSlots(SessionExpiryIndex.Cursor cursor) throws StorageQueryException {
+        long startTime = System.currentTimeMillis();
+        long removedBefore = removed.get();
+        AsyncCollection sessions = SessionQueries.getSessionInfoCollection(start).async();
+        // the slot that is in progress is only visited once it is over
+        long lastDueSlot = SessionExpiryIndex.getSlot(startTime) - 1;
+        // slots older than this have removed themselves, and their sessions are left to the repair scan and to their
+        // document expiry
+        long slot = Math.max(cursor.nextSlot,
+                lastDueSlot - SessionExpiryIndex.SLOT_RETENTION / SessionExpiryIndex.SLOT_SIZE);
+        long visited = 0;
+        for (; slot <= lastDueSlot; slot++) {
+            if (!canContinue()) {
+                break;
+            }
+            List<String> handles = SessionExpiryIndex.getHandles(start, slot);
+            if (handles == null) {
+                continue;
+            }
+            for (int i = 0; i < handles.size(); ) {
+                int end = Math.min(i + throttle.getBatchSize(batchSize), handles.size());
+                removeExpired(sessions, lookupCandidates(sessions, handles.subList(i, end)), false);
+                i = end;
+            }
+            SessionExpiryIndex.removeSlot(start, slot);
+            visited += handles.size();
+        }
+        if (slot != cursor.nextSlot) {
+            cursor.nextSlot = slot;
+            SessionExpiryIndex.saveCursor(start, cursor);
+        }
+        Logging.debug(start, "Visited " + visited + " sessions in due expiry index slots and removed "
+                + (removed.get() - removedBefore) + " expired ones in " + (System.currentTimeMillis() - startTime)
+                + "ms");
+    }
+
+    // returns false if the sweep was stopped before it went over every session
+    private boolean doSweep(boolean repairIndex) throws StorageQueryException {
+        if (!rangeScansUnsupported) {
+            try {
+                return doScanSweep(repairIndex);
+            } catch (FeatureNotAvailableException e) {
+                rangeScansUnsupported = true;
+                Logging.info(start, "The cluster does not support KV range scans, expired sessions are swept with a "
+                        + "query from now on", false);
+            }
+        }
+        return doQuerySweep(repairIndex);
+    }
+
+    private boolean doScanSweep(boolean repairIndex) throws StorageQueryException {
+        long startTime = System.currentTimeMillis();
+        long scannedBefore = scanned.get();
+        long removedBefore = removed.get();
+        Collection sessions = SessionQueries.getSessionInfoCollection(start);
+        Checkpoint checkpoint = Checkpoint.load(start);
+
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "couchbase-plugin-session-sweeper-" + start.getProcessId());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Void>> partitions = new ArrayList<>();
+            for (String partition : getPartitions()) {
+                if (!checkpoint.isDone(partition)) {
+                    partitions.add(workers.submit(() -> {
+                        sweepPartition(sessions, partition, checkpoint, repairIndex);
+                        return null;
+                    }));
+                }
+            }
+            for (Future<Void> partition : partitions) {
+                partition.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof StorageQueryException) {
+                throw (StorageQueryException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new StorageQueryException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageQueryException(e);
+        } finally {
+            workers.shutdownNow();
+        }
+
+        if (!canContinue()) {
+            logStopped(scanned.get() - scannedBefore);
+            return false;
+        }
+        checkpoint.clear();
+        recordSweep(startTime, scannedBefore, removedBefore);
+        return true;
+    }
+
+    // the fallback for clusters without range scans. With repairIndex every session is listed, otherwise only the
+    // expired ones.
+    private boolean doQuerySweep(boolean repairIndex) throws StorageQueryException {
+        long startTime = System.currentTimeMillis();
+        long scannedBefore = scanned.get();
+        long removedBefore = removed.get();
+        AsyncCollection sessions = SessionQueries.getSessionInfoCollection(start).async();
+        com.couchbase.client.java.json.JsonObject parameters = com.couchbase.client.java.json.JsonObject.create()
+                .put("before", repairIndex ? Long.MAX_VALUE : startTime);
+        try (Stream<String> handles = PreparedStatements.getInstance(start)
+                .stream(PreparedStatements.GET_SESSION_HANDLES_EXPIRING_BEFORE, parameters, String.class)) {
+            Iterator<String> it = handles.iterator();
+            List<String> batch = new ArrayList<>(batchSize);
+            int currentBatchSize = throttle.getBatchSize(batchSize);
+            while (it.hasNext()) {
+                batch.add(it.next());
+                if (batch.size() >= currentBatchSize || !it.hasNext()) {
+                    if (!canContinue()) {
+                        logStopped(scanned.get() - scannedBefore);
+                        return false;
+                    }
+                    removeExpired(sessions, lookupCandidates(sessions, batch), repairIndex);
+                    batch.clear();
+                    currentBatchSize = throttle.getBatchSize(batchSize);
+                }
+            }
+        }
+        recordSweep(startTime, scannedBefore, removedBefore);
+        return true;
+    }
+
+    private void logStopped(long sweptNow) {
+        Logging.info(start, "Expired session sweep stopped because the storage layer was disabled or the sweep "
+                + "lease was lost, after " + sweptNow + " sessions", false);
+    }
+
+    private void recordSweep(long startTime, long scannedBefore, long removedBefore) {
+        long duration = System.currentTimeMillis() - startTime;
+        long sweptNow = scanned.get() - scannedBefore;
+        lastSweepDuration = duration;
+        lastSweepThroughput = duration == 0 ? sweptNow : sweptNow * 1000.0 / duration;
+        Logging.info(start, "Swept " + sweptNow + " sessions and removed " + (removed.get() - removedBefore)
+                + " expired ones in " + duration + "ms (" + Math.round(lastSweepThroughput) + " sessions/s)", false);
+    }
+
+    private void sweepPartition(Collection sessions, String partition, Checkpoint checkpoint, boolean repairIndex)
+            throws StorageQueryException {
+        AsyncCollection asyncSessions = sessions.async();
+        try (Stream<String> handles = sessions.scan(ScanType.prefixScan(partition),
+                ScanOptions.scanOptions().idsOnly(true)).map(ScanResult::id)) {
+            Iterator<String> it = handles.iterator();
+            List<String> batch = new ArrayList<>(batchSize);
+            int currentBatchSize = throttle.getBatchSize(batchSize);
+            while (it.hasNext()) {
+                batch.add(it.next());
+                if (batch.size() >= currentBatchSize || !it.hasNext()) {
+                    if (!canContinue()) {
+                        return;
+                    }
+                    acquireBatchSlot();
+                    try {
+                        removeExpired(asyncSessions, lookupCandidates(asyncSessions, batch), repairIndex);
+                    } finally {
+                        releaseBatchSlot();
+                    }
+                    batch.clear();
+                    currentBatchSize = throttle.getBatchSize(batchSize);
+                }
+            }
+        }
+        checkpoint.markDone(partition);
+    }
+
+    // the workers keep scanning their partitions, but only as many of them as the throttle allows remove a batch at once
+    private void acquireBatchSlot() throws StorageQueryException {
+        synchronized (batchSlots) {
+            while (activeBatches >= throttle.getConcurrency(parallelism)) {
+                try {
+                    batchSlots.wait(MAX_SLOT_WAIT);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new StorageQueryException(e);
+                }
+            }
+            activeBatches++;
+        }
+    }
+
+    private void releaseBatchSlot() {
+        synchronized (batchSlots) {
+            activeBatches--;
+            batchSlots.notifyAll();
+        }
+    }
+
+    // looks up expires_at and user_id of a batch of sessions, all at once. Sessions that are gone are left out.
+    private static List<Candidate> lookupCandidates(AsyncCollection sessions, List<String> sessionHandles)
+            throws StorageQueryException {
+        List<CompletableFuture<LookupInResult>> lookups = new ArrayList<>(sessionHandles.size());
+        for (String sessionHandle : sessionHandles) {
+            lookups.add(sessions.lookupIn(sessionHandle, SWEEP_LOOKUP_SPECS));
+        }
+        List<Candidate> candidates = new ArrayList<>(sessionHandles.size());
+        for (int i = 0; i < sessionHandles.size(); i++) {
+            LookupInResult result = await(lookups.get(i));
+            if (result != null) {
+                candidates.add(new Candidate(sessionHandles.get(i),
+                        result.exists(0) ? result.contentAs(0, Long.class) : -1,
+                        result.exists(1) ? result.contentAs(1, String.class) : null, result.cas()));
+            }
+        }
+        return candidates;
+    }
+
+    private void removeExpired(AsyncCollection sessions, List<Candidate> candidates, boolean repairIndex)
+            throws StorageQueryException {
+        long now = System.currentTimeMillis();
+        List<String> expired = new ArrayList<>();
+        List<String> expiredUserIds = new ArrayList<>();
+        List<CompletableFuture<?>> removals = new ArrayList<>();
+        Map<Long, List<String>> liveBySlot = new HashMap<>();
+        for (Candidate candidate : candidates) {
+            if (candidate.expiresAt < 0) {
+                continue;
+            }
+            if (candidate.expiresAt >= now) {
+                if (repairIndex) {
+                    liveBySlot.computeIfAbsent(SessionExpiryIndex.getSlot(candidate.expiresAt),
+                            slot -> new ArrayList<>()).add(candidate.sessionHandle);
+                }
+                continue;
+            }
+            expired.add(candidate.sessionHandle);
+            expiredUserIds.add(candidate.userId);
+            removals.add(sessions.remove(candidate.sessionHandle,
+                    RemoveOptions.removeOptions().cas(candidate.cas)));
+        }
+
+        List<String> removedHandles = new ArrayList<>(expired.size());
+        Map<String, List<String>> removedByUser = new HashMap<>();
+        for (int i = 0; i < removals.size(); i++) {
+            if (await(removals.get(i)) != null) {
+                removedHandles.add(expired.get(i));
+                if (expiredUserIds.get(i) != null) {
+                    removedByUser.computeIfAbsent(expiredUserIds.get(i), userId -> new ArrayList<>())
+                            .add(expired.get(i));
+                }
+            }
+        }
+        SessionQueries.deleteSessionPayloads(start, removedHandles.toArray(new String[0]));
+        UserSessionIndex.getInstance(start).removeAll(removedByUser);
+        scanned.addAndGet(candidates.size());
+        removed.addAndGet(removedHandles.size());
+        SessionExpiryIndex.reconcile(start, liveBySlot);
+    }
+
+    // returns null if the document is gone, or was changed since we looked at it
+    private static <T> T await(CompletableFuture<T> future) throws StorageQueryException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DocumentNotFoundException || cause instanceof CasMismatchException) {
+                return null;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new StorageQueryException(e);
+        }
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    public long getScannedCount() {
+        return scanned.get();
+    }
+
+    public long getRemovedCount() {
+        return removed.get();
+    }
+
+    public long getLastSweepDuration() {
+        return lastSweepDuration;
+    }
+
+    // sessions per second
+    public double getLastSweepThroughput() {
+        return lastSweepThroughput;
+    }
+
+    // a session as far as the sweep is concerned. expiresAt is -1 if the document has none.
+    private static class Candidate {
+        final String sessionHandle;
+        final long expiresAt;
+        final String userId;
+        final long cas;
+
+        Candidate(String sessionHandle, long expiresAt, String userId, long cas) {
+            this.sessionHandle = sessionHandle;
+            this.expiresAt = expiresAt;
+            this.userId = userId;
+            this.cas = cas;
+        }
+    }
+
+    /*
+     * Schema of the checkpoint document in the key value collection is
+     * {
+     * started_at: long,
+     * done: [string], (partitions that have been swept)
+     * }
+     */
+    private static class Checkpoint {
+        private final Collection collection;
+        private final long startedAt;
+        private final Set<String> done;
+
+        private Checkpoint(Collection collection, long startedAt, Set<String> done) {
+            this.collection = collection;
+            this.startedAt = startedAt;
+            this.done = done;
+        }
+
+        static Checkpoint load(Start start) {
+            Collection collection = KeyValueQueries.getKeyValueCollection(start);
+            CasEngine.Versioned current = CasEngine.read(collection, CHECKPOINT_KEY);
+            long now = System.currentTimeMillis();
+            if (current == null || current.content.get(CHECKPOINT_STARTED_AT).getAsLong() < now - MAX_CHECKPOINT_AGE) {
+                return new Checkpoint(collection, now, new HashSet<>());
+            }
+            Set<String> done = new HashSet<>();
+            for (JsonElement partition : current.content.getAsJsonArray(CHECKPOINT_DONE)) {
+                done.add(partition.getAsString());
+            }
+            return new Checkpoint(collection, current.content.get(CHECKPOINT_STARTED_AT).getAsLong(), done);
+        }
+
+        synchronized boolean isDone(String partition) {
+            return done.contains(partition);
+        }
+
+        synchronized void markDone(String partition) {
+            done.add(partition);
+            JsonArray doneArray = new JsonArray();
+            for (String p : done) {
+                doneArray.add(new JsonPrimitive(p));
+            }
+            JsonObject document = new JsonObject();
+            document.addProperty(CHECKPOINT_STARTED_AT, startedAt);
+            document.add(CHECKPOINT_DONE, doneArray);
+            collection.upsert(CHECKPOINT_KEY, document,
+                    UpsertOptions.upsertOptions().transcoder(GsonTranscoder.INSTANCE));
+        }
+
+        synchronized void clear() {
+            try {
+                collection.remove(CHECKPOINT_KEY);
+            } catch (DocumentNotFoundException ignored) {
+            }
+        }
+    }
+}
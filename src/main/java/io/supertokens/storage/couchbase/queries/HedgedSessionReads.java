@@ -0,0 +1,167 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.couchbase.queries;
+
+import com.couchbase.client.core.error.DocumentNotFoundException;
+import com.couchbase.client.java.AsyncCollection;
+import com.couchbase.client.java.kv.GetResult;
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.couchbase.ResourceDistributor;
+import io.supertokens.storage.couchbase.Start;
+import io.supertokens.storage.couchbase.config.Config;
+import io.supertokens.storage.couchbase.config.CouchbaseConfig;
+import io.supertokens.storage.couchbase.utils.LatencyHistogram;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Reads a document from the active node and, if that has not answered within a percentile of recent read
+// latencies, also from any replica. The first successful answer wins. A "not found" from the active node is
+// authoritative, whereas a replica can only win with a document.
+public class HedgedSessionReads extends ResourceDistributor.SingletonResource {
+
+    private static final String RESOURCE_KEY = "io.supertokens.storage.couchbase.queries.HedgedSessionReads";
+
+    private final boolean enabled;
+    private final double percentile;
+    private final long minDelay;
+    private final LatencyHistogram activeReadLatency = new LatencyHistogram();
+
+    private final AtomicLong hedgesSent = new AtomicLong();
+    private final AtomicLong replicaWins = new AtomicLong();
+
+    private HedgedSessionReads(CouchbaseConfig config) {
+        this.enabled = config.isSessionHedgedReadsEnabled();
+        this.percentile = config.getSessionHedgePercentile();
+        this.minDelay = config.getSessionHedgeMinDelay();
+    }
+
+    public static HedgedSessionReads getInstance(Start start) {
+        ResourceDistributor.SingletonResource instance = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (instance == null) {
+            instance = start.getResourceDistributor().setResource(RESOURCE_KEY,
+                    new HedgedSessionReads(Config.getConfig(start)));
+        }
+        return (HedgedSessionReads) instance;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getHedgesSent() {
+        return hedgesSent.get();
+    }
+
+    public long getReplicaWins() {
+        return replicaWins.get();
+    }
+
+    public long getHedgeDelay() {
+        return Math.max(minDelay, activeReadLatency.getPercentile(percentile));
+    }
+
+    // returns an empty Optional if the document does not exist
+    Optional<HedgedResult> get(AsyncCollection collection, String id) throws StorageQueryException {
+        long startTime = System.currentTimeMillis();
+        CompletableFuture<GetResult> active = collection.get(id);
+        active.whenComplete((result, e) -> {
+            if (e == null || unwrap(e) instanceof DocumentNotFoundException) {
+                activeReadLatency.record(System.currentTimeMillis() - startTime);
+            }
+        });
+
+        try {
+            return Optional.of(new HedgedResult(active.get(getHedgeDelay(), TimeUnit.MILLISECONDS), false));
+        } catch (TimeoutException ignored) {
+            // active node is slow, we fall through and race it against a replica
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DocumentNotFoundException) {
+                return Optional.empty();
+            }
+            throw toStorageQueryException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageQueryException(e);
+        }
+
+        hedgesSent.incrementAndGet();
+        CompletableFuture<Optional<HedgedResult>> winner = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+
+        active.whenComplete((result, e) -> {
+            if (e == null) {
+                winner.complete(Optional.of(new HedgedResult(result, false)));
+            } else if (unwrap(e) instanceof DocumentNotFoundException) {
+                winner.complete(Optional.empty());
+            } else if (failures.incrementAndGet() == 2) {
+                winner.completeExceptionally(unwrap(e));
+            }
+        });
+        collection.getAnyReplica(id).whenComplete((result, e) -> {
+            if (e == null) {
+                if (winner.complete(Optional.of(new HedgedResult(result, result.isReplica())))
+                        && result.isReplica()) {
+                    replicaWins.incrementAndGet();
+                }
+            } else if (failures.incrementAndGet() == 2) {
+                // the active read failed as well, so that error is more useful to the caller
+                active.whenComplete((r, activeError) -> winner.completeExceptionally(
+                        activeError == null ? unwrap(e) : unwrap(activeError)));
+            }
+        });
+
+        try {
+            return winner.get();
+        } catch (ExecutionException e) {
+            throw toStorageQueryException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageQueryException(e);
+        }
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        while (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    private static StorageQueryException toStorageQueryException(Throwable e) {
+        if (e instanceof Exception) {
+            return new StorageQueryException((Exception) e);
+        }
+        return new StorageQueryException(new RuntimeException(e));
+    }
+
+    static class HedgedResult {
+        final GetResult result;
+        final boolean fromReplica;
+
+        HedgedResult(GetResult result, boolean fromReplica) {
+            this.result = result;
+            this.fromReplica = fromReplica;
+        }
+    }
+}
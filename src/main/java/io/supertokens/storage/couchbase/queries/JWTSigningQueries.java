@@ -16,37 +16,60 @@
 
 package io.supertokens.storage.couchbase.queries;
 
-import com.couchbase.client.core.error.CouchbaseException;
+import com.couchbase.client.core.error.CasMismatchException;
+import com.couchbase.client.core.error.DocumentExistsException;
 import com.couchbase.client.core.error.DocumentNotFoundException;
 import com.couchbase.client.java.Bucket;
 import com.couchbase.client.java.Collection;
-import com.couchbase.client.java.Scope;
 import com.couchbase.client.java.json.JsonObject;
-import com.couchbase.client.java.kv.GetResult;
-import com.couchbase.client.java.kv.*;
-import com.couchbase.client.java.query.QueryResult;
+import com.couchbase.client.java.kv.IncrementOptions;
+import com.couchbase.client.java.kv.InsertOptions;
+import com.couchbase.client.java.kv.RemoveOptions;
 import io.supertokens.pluginInterface.RowMapper;
 import io.supertokens.pluginInterface.exceptions.StorageQueryException;
 import io.supertokens.pluginInterface.jwt.JWTAsymmetricSigningKeyInfo;
 import io.supertokens.pluginInterface.jwt.JWTSigningKeyInfo;
 import io.supertokens.pluginInterface.jwt.JWTSymmetricSigningKeyInfo;
+import io.supertokens.pluginInterface.jwt.exceptions.DuplicateKeyIdException;
 import io.supertokens.storage.couchbase.ConnectionPool;
 import io.supertokens.storage.couchbase.Start;
 import io.supertokens.storage.couchbase.config.Config;
+import io.supertokens.storage.couchbase.utils.GsonTranscoder;
 
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 public class JWTSigningQueries {
+
+    // a counter document in the key value collection that is incremented whenever a signing key is written, so that
+    // nodes can tell whether their copy of the keys is current with one small KV read
+    static final String KEY_SET_VERSION = "jwt_signing_keyset_version";
+
+    /*
+     * Schema of the key id guard documents, in the key value collection (the key is KEY_ID_GUARD_PREFIX + key id)
+     * {
+     * algorithm: string, (of the key that holds the key id)
+     * }
+     *
+     * Algorithm documents are keyed by algorithm, so on their own they cannot stop a key id from being used under two
+     * algorithms. The guard is inserted before the algorithm's document, and its insert failing is what tells that
+     * the key id is taken.
+     */
+    private static final String KEY_ID_GUARD_PREFIX = "jwt_keyid_";
+    private static final String LEGACY_DOCUMENT_PREFIX = "jwt_";
+
     public static List<JWTSigningKeyInfo> getJWTSigningKeys_Transaction(Start start) throws StorageQueryException {
-        Bucket bucket = ConnectionPool.getClientConnectedToBucket(start);
 //        MongoCollection collection = client.getCollection(Config.getConfig(start).getJWTSigningKeysCollection());
         List<JWTSigningKeyInfo> result = new ArrayList<>();
 
         /*
          * Schema for the collection is
          * {
-         * _id: string, (key id)
+         * _id: string, (key id. Documents written before the per algorithm layout have id instead)
          * key_string: string,
          * created_at: long,
          * algorithm: string,
@@ -58,12 +81,18 @@ public class JWTSigningQueries {
          * defined
          * keys in the future.
          */
-        Scope signingScope = bucket.defaultScope();
-        QueryResult result1 = signingScope.query(String.format("SELECT * FROM `%s`;", Config.getConfig(start).getJWTSigningKeysCollection()));
-
-        for (JsonObject row : result1.rowsAsObject()) {
-            result.add(JWTSigningKeyInfoRowMapper.getInstance().mapOrThrow(row));
+        // a key that was written before the per algorithm layout and then copied into its algorithm's document is in
+        // both, and is listed once
+        Map<String, JWTSigningKeyInfo> byKeyId = new LinkedHashMap<>();
+        try (Stream<JsonObject> rows = PreparedStatements.getInstance(start)
+                .stream(PreparedStatements.GET_JWT_SIGNING_KEYS, null, JsonObject.class)) {
+            Iterator<JsonObject> iterator = rows.iterator();
+            while (iterator.hasNext()) {
+                JWTSigningKeyInfo key = JWTSigningKeyInfoRowMapper.getInstance().mapOrThrow(iterator.next());
+                byKeyId.putIfAbsent(key.keyId, key);
+            }
         }
+        result.addAll(byKeyId.values());
 
 
         // Return the result rows with the rowsAsObject() method and print to the terminal.
@@ -90,98 +119,192 @@ public class JWTSigningQueries {
 
         @Override
         public JWTSigningKeyInfo map(JsonObject result) throws Exception {
-            String keyId = result.getString("_id");
+            String keyId = result.containsKey("_id") ? result.getString("_id") : result.getString("id");
             String keyString = result.getString("key_string");
             long createdAt = result.getLong("created_at");
             String algorithm = result.getString("algorithm");
 
-            if (keyString.contains("|") || keyString.contains(";")) {
-                return new JWTAsymmetricSigningKeyInfo(keyId, createdAt, algorithm, keyString);
-            } else {
-                return new JWTSymmetricSigningKeyInfo(keyId, createdAt, algorithm, keyString);
-            }
+            return toJWTSigningKeyInfo(keyId, keyString, createdAt, algorithm);
         }
     }
 
+    // each algorithm has one document, whose key is derived from the algorithm, so "if no key for the algorithm exists"
+    // is decided by the server when the insert below finds the document already there. Keys written before this
+    // layout are in documents named after their key id, which the listing above still returns. Before the first
+    // insert for an algorithm, the newest of those for the algorithm is copied into its document, so that an upgraded
+    // cluster does not get a second key for an algorithm it already has one for.
     public static boolean setJWTSigningKeyInfoIfNoKeyForAlgorithmExists_Transaction(Start start,
-            JWTSigningKeyInfo keyInfo) throws StorageQueryException {
+            JWTSigningKeyInfo keyInfo) throws StorageQueryException, DuplicateKeyIdException {
         Bucket bucket = ConnectionPool.getClientConnectedToBucket(start);
         Collection collection = bucket.collection(Config.getConfig(start).getJWTSigningKeysCollection());
+        String documentId = getDocumentId(keyInfo.algorithm);
+        if (!collection.exists(documentId).exists()) {
+            migrateLegacyKey(start, collection, keyInfo.algorithm);
+        }
 
-        JsonObject toInsertIfNoneFound = JsonObject.create().
-                put("id", keyInfo.keyId).
-                put("key_string", keyInfo.keyString).
-                put("created_at", keyInfo.createdAtTime).
-                put("algorithm", keyInfo.algorithm);
+        long guardCas = claimKeyId(start, collection, keyInfo);
+        com.google.gson.JsonObject toInsertIfNoneFound = toDocument(keyInfo);
 
-//        JsonObject toInsertIfNoneFound = new JsonObject("$setOnInsert",
-//                new JsonObject("_id", keyInfo.keyId).append("key_string", keyInfo.keyString)
-//                        .append("created_at", keyInfo.createdAtTime).append("algorithm", keyInfo.algorithm));
+        // null if the key was inserted, otherwise the key that is already stored for the algorithm
+        CasEngine.Versioned existing = CasEngine.getInstance(start).run(
+                "setJWTSigningKeyInfoIfNoKeyForAlgorithmExists_Transaction", () -> {
+                    try {
+                        collection.insert(documentId, toInsertIfNoneFound,
+                                InsertOptions.insertOptions().transcoder(GsonTranscoder.INSTANCE));
+                        return null;
+                    } catch (DocumentExistsException e) {
+                        CasEngine.Versioned current = CasEngine.read(collection, documentId);
+                        if (current == null) {
+                            // removed since the insert failed, so the insert is tried again
+                            throw e;
+                        }
+                        return current;
+                    }
+                });
+        if (existing == null) {
+            incrementKeySetVersion(start);
+            return true;
+        }
 
-//        FindOneAndUpdateOptions options = new FindOneAndUpdateOptions();
-//        options.returnDocument(ReturnDocument.AFTER);
-//        options.upsert(true);
+        /*
+         * We cannot solely rely on key id to determine if the key in storage is the one we were trying to set.
+         * For example: Consider that storage has a key (alg: RSA, keyId: 123, keyString: 1234)
+         * and at some point a write is made to set a key (alg: RSA, keyId: 123, keyString: 5678) [In theory this
+         * should never happen for keys generated from within the core, but in the future when we allow user defined
+         * keys this may be a situation]
+         *
+         * In this case comparing just key ids would return true when it shouldn't, and the caller will proceed to
+         * use a different key string than the one in storage. To resolve this we convert the document to the key
+         * class and do a full equals check instead
+         */
+        com.google.gson.JsonObject document = existing.content;
+        JWTSigningKeyInfo stored = toJWTSigningKeyInfo(document.get("_id").getAsString(),
+                document.get("key_string").getAsString(), document.get("created_at").getAsLong(),
+                document.get("algorithm").getAsString());
+        if (stored.equals(keyInfo)) {
+            // the caller did not see this key, possibly because the increment after writing it failed
+            incrementKeySetVersion(start);
+            return true;
+        }
+        if (stored.keyId.equals(keyInfo.keyId)) {
+            throw new DuplicateKeyIdException();
+        }
+        releaseKeyId(start, keyInfo.keyId, guardCas);
+        return false;
+    }
 
-        Scope signingScope = bucket.defaultScope();
-        Collection signingCollection = signingScope.collection(Config.getConfig(start).getJWTSigningKeysCollection());
+    // inserts the key id's guard document, and returns its CAS, or 0 if it already held the key id for this
+    // algorithm, in which case the algorithm's document decides as before. Throws if another algorithm holds it.
+    private static long claimKeyId(Start start, Collection collection, JWTSigningKeyInfo keyInfo)
+            throws StorageQueryException, DuplicateKeyIdException {
+        // keys written before the per algorithm layout are in documents named after their key id
+        try {
+            String legacyAlgorithm = collection.get(LEGACY_DOCUMENT_PREFIX + keyInfo.keyId).contentAsObject()
+                    .getString("algorithm");
+            if (!keyInfo.algorithm.equals(legacyAlgorithm)) {
+                throw new DuplicateKeyIdException();
+            }
+        } catch (DocumentNotFoundException ignored) {
+        }
 
-        QueryResult result1 = signingScope.query(String.format("SELECT * FROM `%s` WHERE algorithm = '%s' AND META().id = '%s';", Config.getConfig(start).getJWTSigningKeysCollection(), keyInfo.algorithm, String.format("jwt_%s", keyInfo.keyId)));
-        if (result1.rowsAsObject().isEmpty()) {
-            MutationResult upsertResult;
+        Collection keyValues = KeyValueQueries.getKeyValueCollection(start);
+        String guardId = KEY_ID_GUARD_PREFIX + keyInfo.keyId;
+        com.google.gson.JsonObject guard = new com.google.gson.JsonObject();
+        guard.addProperty("algorithm", keyInfo.algorithm);
+        // content is null if the guard was inserted here
+        CasEngine.Versioned existing = CasEngine.getInstance(start).run("claimKeyId", () -> {
             try {
-                upsertResult = collection.upsert(
-                        String.format("jwt_%s", keyInfo.keyId),
-                        toInsertIfNoneFound
-                );
-            } catch (CouchbaseException e) {
-                throw new CouchbaseException("Couchbase upsert failed in jwt", e);
-            }
-            if (upsertResult.cas() <= 0) {
-                throw new CouchbaseException(String.format("Couchbase upsert failed in jwt, invalid cas: %d", upsertResult.cas()));
+                return new CasEngine.Versioned(null, keyValues.insert(guardId, guard,
+                        InsertOptions.insertOptions().transcoder(GsonTranscoder.INSTANCE)).cas());
+            } catch (DocumentExistsException e) {
+                CasEngine.Versioned current = CasEngine.read(keyValues, guardId);
+                if (current == null) {
+                    // released since the insert failed, so the insert is tried again
+                    throw e;
+                }
+                return current;
             }
-            return JWTSigningKeyInfoRowMapper.getInstance().mapOrThrow(toInsertIfNoneFound).equals(keyInfo);
+        });
+        if (existing.content == null) {
+            return existing.cas;
+        }
+        if (!keyInfo.algorithm.equals(existing.content.get("algorithm").getAsString())) {
+            throw new DuplicateKeyIdException();
         }
+        return 0;
+    }
 
-        for (JsonObject row : result1.rowsAsObject()) {
-            return JWTSigningKeyInfoRowMapper.getInstance().mapOrThrow(row).equals(keyInfo);
+    // gives the key id back when its key was not stored, unless the guard was already there before this call
+    private static void releaseKeyId(Start start, String keyId, long guardCas) {
+        if (guardCas == 0) {
+            return;
         }
+        try {
+            KeyValueQueries.getKeyValueCollection(start).remove(KEY_ID_GUARD_PREFIX + keyId,
+                    RemoveOptions.removeOptions().cas(guardCas));
+        } catch (DocumentNotFoundException | CasMismatchException ignored) {
+        }
+    }
 
-        GetResult result;
+    // copies the newest key of the algorithm that is in a document named after its key id, if there is one, into the
+    // algorithm's document. The listing already returns these keys, so the key set version is left alone.
+    private static void migrateLegacyKey(Start start, Collection collection, String algorithm)
+            throws StorageQueryException {
+        JWTSigningKeyInfo newest = null;
+        for (JWTSigningKeyInfo key : getJWTSigningKeys_Transaction(start)) {
+            if (key.algorithm.equals(algorithm) && (newest == null || key.createdAtTime > newest.createdAtTime)) {
+                newest = key;
+            }
+        }
+        if (newest == null) {
+            return;
+        }
         try {
-            result = signingCollection.get(String.format("jwt_%s", keyInfo.keyId));
-            return JWTSigningKeyInfoRowMapper.getInstance().mapOrThrow(result.contentAsObject()).equals(keyInfo);
+            collection.insert(getDocumentId(algorithm), toDocument(newest),
+                    InsertOptions.insertOptions().transcoder(GsonTranscoder.INSTANCE));
+        } catch (DocumentExistsException ignored) {
+            // another node migrated it, or wrote a key for the algorithm, first
+        }
+    }
+
+    private static com.google.gson.JsonObject toDocument(JWTSigningKeyInfo keyInfo) {
+        com.google.gson.JsonObject document = new com.google.gson.JsonObject();
+        document.addProperty("_id", keyInfo.keyId);
+        document.addProperty("key_string", keyInfo.keyString);
+        document.addProperty("created_at", keyInfo.createdAtTime);
+        document.addProperty("algorithm", keyInfo.algorithm);
+        return document;
+    }
+
+    // the key set version is in the key value collection, which deleteAllKeyValues clears
+    public static void deleteAllJWTSigningKeys(Start start) {
+        PreparedStatements.getInstance(start).execute(PreparedStatements.DELETE_ALL_JWT_SIGNING_KEYS);
+    }
+
+    static String getDocumentId(String algorithm) {
+        return "jwt_algorithm_" + algorithm;
+    }
+
+    // 0 if no key has been written since the counter was introduced
+    public static long getKeySetVersion(Start start) {
+        try {
+            return KeyValueQueries.getKeyValueCollection(start).get(KEY_SET_VERSION).contentAs(Long.class);
         } catch (DocumentNotFoundException e) {
-            throw new CouchbaseException("Couchbase lookup failed jwt all", e);
-        } catch (CouchbaseException e) {
-            throw new CouchbaseException("Couchbase lookup failed", e);
-        }
-
-
-
-//        /*
-//         * findOneAndUpdate will try to find a row with the matching filter and try to insert if one isn't found.
-//         * This means that when setting Key2 when Key1 (with a matching algorithm) already exists in storage, the query
-//         * will
-//         * return Key1. So after the query we need to compare the returned document with the one we were trying to set
-//         * to determine
-//         * if the set query succeeded.
-//         */
-//        JsonObject result2 = (JsonObject) collection.findOneAndUpdate(Filters.eq("algorithm", keyInfo.algorithm),
-//                toInsertIfNoneFound, options);
-//
-//        /*
-//         * Because we use findOneAndUpdate we cannot solely rely on key id to determine if a document was inserted or
-//         * not
-//         * For example: Consider that storage has a key (alg: RSA, keyId: 123, keyString: 1234)
-//         * and at some point a write is made to set a key (alg: RSA, keyId: 123, keyString: 5678) [In theory this should
-//         * never happen for keys generated from within the core, but in the future when we allow user defined keys this
-//         * may be a situation]
-//         *
-//         * In this case comparing just key ids would return true when it shouldn't, and the caller will proceed to use a
-//         * different key string than the one in storage. To resolve this we will first convert the Document to the key
-//         * class
-//         * and do a full equals check instead
-//         */
-//        return JWTSigningKeyInfoRowMapper.getInstance().mapOrThrow(result).equals(keyInfo);
+            return 0;
+        }
+    }
+
+    private static void incrementKeySetVersion(Start start) {
+        KeyValueQueries.getKeyValueCollection(start).binary().increment(KEY_SET_VERSION,
+                IncrementOptions.incrementOptions().initial(1));
+    }
+
+    private static JWTSigningKeyInfo toJWTSigningKeyInfo(String keyId, String keyString, long createdAt,
+            String algorithm) {
+        if (keyString.contains("|") || keyString.contains(";")) {
+            return new JWTAsymmetricSigningKeyInfo(keyId, createdAt, algorithm, keyString);
+        } else {
+            return new JWTSymmetricSigningKeyInfo(keyId, createdAt, algorithm, keyString);
+        }
     }
 }
@@ -0,0 +1,218 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.couchbase.queries;
+
+import com.couchbase.client.core.error.DocumentExistsException;
+import com.couchbase.client.core.error.DocumentNotFoundException;
+import com.couchbase.client.java.Collection;
+import com.couchbase.client.java.kv.ExistsResult;
+import com.couchbase.client.java.kv.InsertOptions;
+import com.couchbase.client.java.kv.UpsertOptions;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.supertokens.pluginInterface.KeyValueInfo;
+import io.supertokens.pluginInterface.KeyValueInfoWithLastUpdated;
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.couchbase.ConnectionPool;
+import io.supertokens.storage.couchbase.Start;
+import io.supertokens.storage.couchbase.config.Config;
+import io.supertokens.storage.couchbase.utils.GsonTranscoder;
+import io.supertokens.storage.couchbase.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class KeyValueQueries {
+
+    /*
+     * Schema for the collection is (the document key is the name of the key value)
+     * {
+     * value: string,
+     * created_at_time: long,
+     * last_updated_sign: string,
+     * }
+     *
+     * Array key values, like the access token signing key list, are one document per name:
+     * {
+     * keys: [{ value: string, created_at_time: long }], (oldest first)
+     * }
+     */
+    static final String VALUE = "value";
+    static final String CREATED_AT_TIME = "created_at_time";
+    static final String LAST_UPDATED_SIGN = "last_updated_sign";
+    static final String KEYS = "keys";
+
+    public static void setKeyValue(Start start, String key, KeyValueInfo info) {
+        getKeyValueCollection(start).upsert(key, toDocument(info, Utils.getUUID()),
+                UpsertOptions.upsertOptions().transcoder(GsonTranscoder.INSTANCE));
+    }
+
+    public static KeyValueInfo getKeyValue(Start start, String key) {
+        return getKeyValue_Transaction(start, key);
+    }
+
+    public static KeyValueInfoWithLastUpdated getKeyValue_Transaction(Start start, String key) {
+        CasEngine.Versioned current = CasEngine.read(getKeyValueCollection(start), key);
+        if (current == null) {
+            return null;
+        }
+        JsonObject document = current.content;
+        return new KeyValueInfoWithLastUpdated(document.get(VALUE).getAsString(),
+                document.get(CREATED_AT_TIME).getAsLong(), document.get(LAST_UPDATED_SIGN).getAsString());
+    }
+
+    // writes the key value only if it is unchanged since info was read. A null lastUpdatedSign means the caller saw no
+    // key value, in which case this only succeeds if there still is none.
+    public static boolean setKeyValue_Transaction(Start start, String key, KeyValueInfoWithLastUpdated info)
+            throws StorageQueryException {
+        Collection collection = getKeyValueCollection(start);
+        JsonObject document = toDocument(info, Utils.getUUID());
+        return CasEngine.getInstance(start).run("setKeyValue_Transaction", () -> {
+            if (info.lastUpdatedSign == null) {
+                try {
+                    collection.insert(key, document, InsertOptions.insertOptions().transcoder(GsonTranscoder.INSTANCE));
+                    return true;
+                } catch (DocumentExistsException e) {
+                    return false;
+                }
+            }
+
+            CasEngine.Versioned current = CasEngine.read(collection, key);
+            if (current == null || !info.lastUpdatedSign.equals(current.content.get(LAST_UPDATED_SIGN).getAsString())) {
+                return false;
+            }
+            CasEngine.replace(collection, key, document, current.cas);
+            return true;
+        });
+    }
+
+    public static void deleteKeyValue(Start start, String key) {
+        try {
+            getKeyValueCollection(start).remove(key);
+        } catch (DocumentNotFoundException ignored) {
+        }
+    }
+
+    // also removes the plugin's own documents in the collection: leases, expiry index slots and cursor, user session
+    // indexes, the sweep checkpoint, the migration and reconcile markers, the JWT key set version and key id guards
+    public static void deleteAllKeyValues(Start start) {
+        PreparedStatements.getInstance(start).execute(PreparedStatements.DELETE_ALL_KEY_VALUES);
+    }
+
+    // newest first
+    public static List<KeyValueInfo> getArrayKeyValue_Transaction(Start start, String key) {
+        return getVersionedArrayKeyValue(start, key).values;
+    }
+
+    public static VersionedArrayKeyValue getVersionedArrayKeyValue(Start start, String key) {
+        List<KeyValueInfo> result = new ArrayList<>();
+        CasEngine.Versioned current = CasEngine.read(getKeyValueCollection(start), key);
+        if (current == null) {
+            return new VersionedArrayKeyValue(result, 0);
+        }
+        JsonArray keys = current.content.getAsJsonArray(KEYS);
+        for (int i = keys.size() - 1; i >= 0; i--) {
+            JsonObject element = keys.get(i).getAsJsonObject();
+            result.add(new KeyValueInfo(element.get(VALUE).getAsString(), element.get(CREATED_AT_TIME).getAsLong()));
+        }
+        return new VersionedArrayKeyValue(result, current.cas);
+    }
+
+    // the CAS of the key value's document, 0 if there is none. Tells whether it has changed without reading it.
+    public static long getCas(Start start, String key) {
+        ExistsResult result = getKeyValueCollection(start).exists(key);
+        return result.exists() ? result.cas() : 0;
+    }
+
+    // appends info only if the newest element is still the one created at lastCreated (or there is none if
+    // lastCreated is null), so that two cores rotating keys at the same time do not both add one
+    public static boolean addArrayKeyValue_Transaction(Start start, String key, KeyValueInfo info, Long lastCreated)
+            throws StorageQueryException {
+        Collection collection = getKeyValueCollection(start);
+        return CasEngine.getInstance(start).run("addArrayKeyValue_Transaction", () -> {
+            CasEngine.Versioned current = CasEngine.read(collection, key);
+            JsonArray keys = current == null ? new JsonArray() : current.content.getAsJsonArray(KEYS);
+            Long newest = keys.size() == 0 ? null
+                    : keys.get(keys.size() - 1).getAsJsonObject().get(CREATED_AT_TIME).getAsLong();
+            if (newest == null ? lastCreated != null : !newest.equals(lastCreated)) {
+                return false;
+            }
+
+            JsonObject element = new JsonObject();
+            element.addProperty(VALUE, info.value);
+            element.addProperty(CREATED_AT_TIME, info.createdAtTime);
+            keys.add(element);
+            JsonObject document = new JsonObject();
+            document.add(KEYS, keys);
+            if (current == null) {
+                CasEngine.insert(collection, key, document);
+            } else {
+                CasEngine.replace(collection, key, document, current.cas);
+            }
+            return true;
+        });
+    }
+
+    public static void removeArrayKeyValuesBefore(Start start, String key, long time) throws StorageQueryException {
+        Collection collection = getKeyValueCollection(start);
+        CasEngine.getInstance(start).run("removeArrayKeyValuesBefore", () -> {
+            CasEngine.Versioned current = CasEngine.read(collection, key);
+            if (current == null) {
+                return null;
+            }
+            JsonArray keys = current.content.getAsJsonArray(KEYS);
+            JsonArray remaining = new JsonArray();
+            for (JsonElement element : keys) {
+                if (element.getAsJsonObject().get(CREATED_AT_TIME).getAsLong() >= time) {
+                    remaining.add(element);
+                }
+            }
+            if (remaining.size() != keys.size()) {
+                JsonObject document = new JsonObject();
+                document.add(KEYS, remaining);
+                CasEngine.replace(collection, key, document, current.cas);
+            }
+            return null;
+        });
+    }
+
+    private static JsonObject toDocument(KeyValueInfo info, String lastUpdatedSign) {
+        JsonObject document = new JsonObject();
+        document.addProperty(VALUE, info.value);
+        document.addProperty(CREATED_AT_TIME, info.createdAtTime);
+        document.addProperty(LAST_UPDATED_SIGN, lastUpdatedSign);
+        return document;
+    }
+
+    static Collection getKeyValueCollection(Start start) {
+        return ConnectionPool.getClientConnectedToBucket(start)
+                .collection(Config.getConfig(start).getKeyValueCollection());
+    }
+
+    public static class VersionedArrayKeyValue {
+        // newest first
+        public final List<KeyValueInfo> values;
+        // 0 if there is no document
+        public final long cas;
+
+        public VersionedArrayKeyValue(List<KeyValueInfo> values, long cas) {
+            this.values = values;
+            this.cas = cas;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.couchbase.queries;
+
+import io.supertokens.storage.couchbase.ResourceDistributor;
+import io.supertokens.storage.couchbase.Start;
+import io.supertokens.storage.couchbase.config.Config;
+import io.supertokens.storage.couchbase.config.CouchbaseConfig;
+import io.supertokens.storage.couchbase.utils.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Scales the batch size and concurrency of background maintenance (the expired session sweep, the user session index
+// reconciliation and the session payload migration) to how the cluster is doing for foreground traffic. Session reads record their latency here, and once per window the p99 of that window
+// is compared with the configured target: above it the rate is halved, at or below it (or when there was too little
+// foreground traffic to tell) the rate goes back up by a step. Maintenance asks for its batch size and concurrency
+// before every batch, so a back off takes effect within one batch.
+public class MaintenanceThrottle extends ResourceDistributor.SingletonResource {
+
+    private static final String RESOURCE_KEY = "io.supertokens.storage.couchbase.queries.MaintenanceThrottle";
+
+    private static final long WINDOW = 1000;
+    // with fewer foreground reads than this in a window the cluster is treated as idle
+    private static final int MIN_SAMPLES = 20;
+    private static final double MIN_RATE = 1.0 / 16;
+    private static final double SPEED_UP_STEP = 0.125;
+
+    private final boolean enabled;
+    private final long targetLatency;
+
+    private volatile LatencyHistogram window = new LatencyHistogram();
+    private long windowStart = System.currentTimeMillis();
+    private volatile double rate = 1;
+    private volatile long lastForegroundP99 = -1;
+
+    private final AtomicLong backOffs = new AtomicLong();
+    private final AtomicLong speedUps = new AtomicLong();
+
+    private MaintenanceThrottle(CouchbaseConfig config) {
+        this.enabled = config.isMaintenanceThrottleEnabled();
+        this.targetLatency = config.getMaintenanceThrottleTargetLatency();
+    }
+
+    public static MaintenanceThrottle getInstance(Start start) {
+        ResourceDistributor.SingletonResource instance = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (instance == null) {
+            instance = start.getResourceDistributor().setResource(RESOURCE_KEY,
+                    new MaintenanceThrottle(Config.getConfig(start)));
+        }
+        return (MaintenanceThrottle) instance;
+    }
+
+    public void recordForeground(long latencyMillis) {
+        if (enabled) {
+            window.record(latencyMillis);
+        }
+    }
+
+    public int getBatchSize(int maxBatchSize) {
+        return scale(maxBatchSize);
+    }
+
+    public int getConcurrency(int maxConcurrency) {
+        return scale(maxConcurrency);
+    }
+
+    private int scale(int max) {
+        if (!enabled) {
+            return max;
+        }
+        adjust(System.currentTimeMillis());
+        return Math.max(1, (int) Math.round(max * rate));
+    }
+
+    private synchronized void adjust(long now) {
+        if (now - windowStart < WINDOW) {
+            return;
+        }
+        LatencyHistogram finished = window;
+        window = new LatencyHistogram();
+        windowStart = now;
+
+        if (finished.getSampleCount() < MIN_SAMPLES) {
+            lastForegroundP99 = -1;
+            speedUp();
+            return;
+        }
+        lastForegroundP99 = finished.getPercentile(99);
+        if (lastForegroundP99 > targetLatency) {
+            if (rate > MIN_RATE) {
+                rate = Math.max(MIN_RATE, rate / 2);
+                backOffs.incrementAndGet();
+            }
+        } else {
+            speedUp();
+        }
+    }
+
+    private void speedUp() {
+        if (rate < 1) {
+            rate = Math.min(1, rate + SPEED_UP_STEP);
+            speedUps.incrementAndGet();
+        }
+    }
+
+    // fraction of the configured batch size and concurrency that maintenance currently runs at
+    public double getRate() {
+        return rate;
+    }
+
+    // -1 if the last window had too few foreground reads to tell
+    public long getLastForegroundP99() {
+        return lastForegroundP99;
+    }
+
+    public long getBackOffCount() {
+        return backOffs.get();
+    }
+
+    public long getSpeedUpCount() {
+        return speedUps.get();
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.couchbase.queries;
+
+import com.couchbase.client.core.error.CouchbaseException;
+import com.couchbase.client.java.json.JsonObject;
+import com.couchbase.client.java.kv.MutationState;
+import com.couchbase.client.java.query.QueryOptions;
+import com.couchbase.client.java.query.QueryScanConsistency;
+import io.supertokens.storage.couchbase.ConnectionPool;
+import io.supertokens.storage.couchbase.ResourceDistributor;
+import io.supertokens.storage.couchbase.Start;
+import io.supertokens.storage.couchbase.config.Config;
+import io.supertokens.storage.couchbase.config.CouchbaseConfig;
+import io.supertokens.storage.couchbase.output.Logging;
+import io.supertokens.storage.couchbase.utils.LatencyHistogram;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+// The plugin's N1QL statements, each defined once with its values as named parameters. They are run with
+// adhoc(false), so the query service prepares a statement on its first use and every later call, with any
+// parameters, executes that plan instead of parsing and planning the text again. Collection names cannot be
+// parameters, so they are put into the text once, as escaped identifiers, when the catalogue is built from the config.
+// Each statement also has a scan consistency, which couchbase_query_scan_consistency can override per statement.
+// Results are streamed from the reactive API rather than buffered, and statements that can return many rows are
+// paged by key with $after and $limit.
+public class PreparedStatements extends ResourceDistributor.SingletonResource {
+
+    private static final String RESOURCE_KEY = "io.supertokens.storage.couchbase.queries.PreparedStatements";
+
+    static final String GET_JWT_SIGNING_KEYS = "getJWTSigningKeys_Transaction";
+    static final String GET_NON_EXPIRED_SESSION_HANDLES_OF_USER = "getAllNonExpiredSessionHandlesForUser";
+    static final String GET_SESSION_HANDLES_OF_USER = "deleteSessionsOfUser";
+    static final String COUNT_SESSIONS = "getNumberOfSessions";
+    static final String GET_SESSION_HANDLES_EXPIRING_BEFORE = "deleteAllExpiredSessions";
+    static final String DELETE_ALL_SESSIONS = "deleteAllSessions";
+    static final String DELETE_ALL_KEY_VALUES = "deleteAllKeyValues";
+    static final String DELETE_ALL_JWT_SIGNING_KEYS = "deleteAllJWTSigningKeys";
+
+    private final Start start;
+    private final Map<String, Definition> statements;
+    private final int pageSize;
+    private final Map<String, Consistency> consistencies = new HashMap<>();
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> boundedLatencies = new ConcurrentHashMap<>();
+
+    private PreparedStatements(Start start, CouchbaseConfig config) {
+        this.start = start;
+        this.statements = define(config);
+        this.pageSize = config.getQueryPageSize();
+        for (Map.Entry<String, Definition> statement : statements.entrySet()) {
+            consistencies.put(statement.getKey(), statement.getValue().consistency);
+        }
+        for (Map.Entry<String, String> override : config.getQueryScanConsistencies().entrySet()) {
+            if (!statements.containsKey(override.getKey())) {
+                Logging.warn(start, "couchbase_query_scan_consistency names an unknown statement: " + override.getKey());
+                continue;
+            }
+            consistencies.put(override.getKey(), Consistency.fromConfig(override.getValue()));
+        }
+    }
+
+    public static PreparedStatements getInstance(Start start) {
+        ResourceDistributor.SingletonResource instance = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (instance == null) {
+            instance = start.getResourceDistributor().setResource(RESOURCE_KEY,
+                    new PreparedStatements(start, Config.getConfig(start)));
+        }
+        return (PreparedStatements) instance;
+    }
+
+    static Map<String, Definition> define(CouchbaseConfig config) {
+        Map<String, Definition> statements = new LinkedHashMap<>();
+        // only runs when the key set version has moved, and must then see the key that moved it. RAW, so that each
+        // row is the key document itself rather than the document wrapped in an object named after the collection.
+        // The collection holds one document per algorithm, so it is read with a full scan on purpose.
+        statements.put(GET_JWT_SIGNING_KEYS,
+                new Definition("SELECT RAW k FROM " + keyspace(config.getJWTSigningKeysCollection()) + " AS k",
+                        JsonObject.create(), Consistency.REQUEST_PLUS, true));
+        // both are covered by idx_session_info_user_id_id_expires_at, whose key order is also the page order, so a
+        // page is read straight off the index. They run at_plus, so that a session this node has just created is
+        // listed, and deleted, with the rest of the user's sessions.
+        String sessionInfo = keyspace(config.getSessionInfoCollection());
+        statements.put(GET_NON_EXPIRED_SESSION_HANDLES_OF_USER,
+                new Definition("SELECT RAW META(s).id FROM " + sessionInfo + " AS s WHERE s." + SessionQueries.USER_ID
+                        + " = $user_id AND META(s).id > $after AND s." + SessionQueries.EXPIRES_AT
+                        + " >= $now ORDER BY META(s).id LIMIT $limit",
+                        JsonObject.create().put("user_id", "").put("after", "").put("now", 0L).put("limit", 1),
+                        Consistency.AT_PLUS, false));
+        statements.put(GET_SESSION_HANDLES_OF_USER,
+                new Definition("SELECT RAW META(s).id FROM " + sessionInfo + " AS s WHERE s." + SessionQueries.USER_ID
+                        + " = $user_id AND META(s).id > $after ORDER BY META(s).id LIMIT $limit",
+                        JsonObject.create().put("user_id", "").put("after", "").put("limit", 1), Consistency.AT_PLUS,
+                        false));
+        // used by the expired session sweep on clusters without KV range scans. Covered by
+        // idx_session_info_user_id_id_expires_at, whose leading key every session has, and streamed rather than paged
+        // since the index is not in key order. Expired sessions are not written to any more, so it does not wait for
+        // the index.
+        statements.put(GET_SESSION_HANDLES_EXPIRING_BEFORE,
+                new Definition("SELECT RAW META(s).id FROM " + sessionInfo + " AS s WHERE s." + SessionQueries.USER_ID
+                        + " IS NOT MISSING AND s." + SessionQueries.EXPIRES_AT + " < $before",
+                        JsonObject.create().put("before", 0L), Consistency.NOT_BOUNDED, false));
+        // answered from the primary index's count, without reading any document. request_plus, so that sessions that
+        // were just created are counted.
+        statements.put(COUNT_SESSIONS, new Definition("SELECT RAW COUNT(*) FROM " + sessionInfo,
+                JsonObject.create(), Consistency.REQUEST_PLUS, false));
+        // used by deleteAllInformation, which must also remove what was written just before it. The key value
+        // collection also holds the leases, expiry index slots, user session indexes, markers and cursors.
+        statements.put(DELETE_ALL_SESSIONS, new Definition("DELETE FROM " + sessionInfo, null,
+                Consistency.REQUEST_PLUS, true));
+        statements.put(DELETE_ALL_KEY_VALUES, new Definition("DELETE FROM " + keyspace(config.getKeyValueCollection()),
+                null, Consistency.REQUEST_PLUS, true));
+        statements.put(DELETE_ALL_JWT_SIGNING_KEYS, new Definition("DELETE FROM "
+                + keyspace(config.getJWTSigningKeysCollection()), null, Consistency.REQUEST_PLUS, true));
+        return Collections.unmodifiableMap(statements);
+    }
+
+    Map<String, Definition> getDefinitions() {
+        return statements;
+    }
+
+    // runs the statement and decodes its rows one at a time as the returned stream is consumed. At most a page of rows
+    // is requested ahead of the consumer, and closing the stream early cancels the rest of the result, so it has to
+    // be closed. parameters may be null for a statement that has none.
+    <T> Stream<T> stream(String name, JsonObject parameters, Class<T> rowType) {
+        Definition definition = statements.get(name);
+        QueryOptions options = QueryOptions.queryOptions().adhoc(false);
+        if (parameters != null) {
+            options.parameters(parameters);
+        }
+        boolean bounded = applyConsistency(consistencies.get(name), parameters, options);
+        long startTime = System.currentTimeMillis();
+        return ConnectionPool.getClientConnectedToBucket(start).defaultScope().reactive()
+                .query(definition.statement, options)
+                .flatMapMany(result -> result.rowsAs(rowType))
+                .doOnComplete(() -> {
+                    long latency = System.currentTimeMillis() - startTime;
+                    latencies.computeIfAbsent(name, n -> new LatencyHistogram()).record(latency);
+                    if (bounded) {
+                        boundedLatencies.computeIfAbsent(name, n -> new LatencyHistogram()).record(latency);
+                    }
+                })
+                .toStream(pageSize);
+    }
+
+    // runs a statement that returns no rows, and waits for it to finish
+    void execute(String name) {
+        try (Stream<Object> rows = stream(name, null, Object.class)) {
+            rows.count();
+        }
+    }
+
+    int getPageSize() {
+        return pageSize;
+    }
+
+    // returns false if the statement runs without waiting for the index
+    private boolean applyConsistency(Consistency consistency, JsonObject parameters, QueryOptions options) {
+        if (consistency == Consistency.REQUEST_PLUS) {
+            options.scanConsistency(QueryScanConsistency.REQUEST_PLUS);
+            return true;
+        }
+        // at_plus statements are about the sessions of one user, given as $user_id
+        if (consistency == Consistency.AT_PLUS && parameters != null && parameters.containsKey("user_id")) {
+            MutationState state = SessionMutationTokens.getInstance(start).getState(parameters.getString("user_id"));
+            if (state != null) {
+                options.consistentWith(state);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // prepares the read only statements at startup by running them once, so that the first request that needs one
+    // does not pay for the preparation. Statements that change data are prepared on their first real use.
+    public void warm() {
+        for (Map.Entry<String, Definition> statement : statements.entrySet()) {
+            if (statement.getValue().warmUpParameters == null) {
+                continue;
+            }
+            try (Stream<Object> rows = stream(statement.getKey(), statement.getValue().warmUpParameters,
+                    Object.class)) {
+                rows.count();
+            } catch (CouchbaseException e) {
+                Logging.error(start, "Could not prepare the statement of " + statement.getKey(), false, e);
+            }
+        }
+    }
+
+    // latency in ms of the given statement as seen by this node, -1 if it has not run yet
+    public long getLatencyPercentile(String name, double percentile) {
+        LatencyHistogram histogram = latencies.get(name);
+        return histogram == null ? -1 : histogram.getPercentile(percentile);
+    }
+
+    // total latency in ms of the executions of the given statement that ran at_plus or request_plus, index wait
+    // included, to compare with getLatencyPercentile. -1 if there has not been one yet.
+    public long getBoundedLatencyPercentile(String name, double percentile) {
+        LatencyHistogram histogram = boundedLatencies.get(name);
+        return histogram == null ? -1 : histogram.getPercentile(percentile);
+    }
+
+    private static String keyspace(String collectionName) {
+        return "`" + collectionName.replace("`", "``") + "`";
+    }
+
+    static class Definition {
+        final String statement;
+        // parameters to run the statement with at startup, null if it changes data and must not be run for that
+        final JsonObject warmUpParameters;
+        final Consistency consistency;
+        // true if the statement reads every document of its collection on purpose, either because the collection only
+        // ever holds a handful of documents or because the statement is meant to visit them all
+        final boolean fullScan;
+
+        Definition(String statement, JsonObject warmUpParameters, Consistency consistency, boolean fullScan) {
+            this.statement = statement;
+            this.warmUpParameters = warmUpParameters;
+            this.consistency = consistency;
+            this.fullScan = fullScan;
+        }
+    }
+
+    enum Consistency {
+        NOT_BOUNDED,
+        // waits for the index to catch up with this node's own writes to the sessions of the statement's $user_id
+        AT_PLUS,
+        REQUEST_PLUS;
+
+        // the config has already checked that the value is one of these
+        static Consistency fromConfig(String value) {
+            return valueOf(value.toUpperCase());
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.couchbase.queries;
+
+import com.couchbase.client.core.error.CouchbaseException;
+import com.couchbase.client.core.error.TimeoutException;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.manager.query.CollectionQueryIndexManager;
+import com.couchbase.client.java.manager.query.CreatePrimaryQueryIndexOptions;
+import com.couchbase.client.java.manager.query.CreateQueryIndexOptions;
+import com.couchbase.client.java.manager.query.QueryIndex;
+import io.supertokens.storage.couchbase.ConnectionPool;
+import io.supertokens.storage.couchbase.ResourceDistributor;
+import io.supertokens.storage.couchbase.Start;
+import io.supertokens.storage.couchbase.config.Config;
+import io.supertokens.storage.couchbase.config.CouchbaseConfig;
+import io.supertokens.storage.couchbase.output.Logging;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+// Declares the GSI indexes that the plugin's N1QL statements need, and creates the missing ones when the storage is
+// initialised. Indexes are created deferred and then built together, which is one build per collection instead of
+// one per index, and initialisation waits a bounded time for them to come online. Failures are logged and do not stop
+// the core from starting, since the statements still work (slowly) on whatever indexes do exist.
+public class QueryIndexes extends ResourceDistributor.SingletonResource {
+
+    private static final String RESOURCE_KEY = "io.supertokens.storage.couchbase.queries.QueryIndexes";
+
+    static final String PRIMARY_INDEX_NAME = "#primary";
+
+    private final Start start;
+    private volatile boolean provisioned = false;
+
+    private QueryIndexes(Start start) {
+        this.start = start;
+    }
+
+    public static QueryIndexes getInstance(Start start) {
+        ResourceDistributor.SingletonResource instance = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (instance == null) {
+            instance = start.getResourceDistributor().setResource(RESOURCE_KEY, new QueryIndexes(start));
+        }
+        return (QueryIndexes) instance;
+    }
+
+    static List<IndexDefinition> getDefinitions(CouchbaseConfig config) {
+        return Arrays.asList(
+                // getAllNonExpiredSessionHandlesForUser and deleteSessionsOfUser filter on user_id and expires_at and
+                // page by document key, so this one covers them and returns each page in order
+                new IndexDefinition(config.getSessionInfoCollection(), "idx_session_info_user_id_id_expires_at",
+                        Arrays.asList(SessionQueries.USER_ID, "META().id", SessionQueries.EXPIRES_AT)),
+                // counting sessions, and deleting all documents of a collection
+                IndexDefinition.primary(config.getSessionInfoCollection()),
+                IndexDefinition.primary(config.getKeyValueCollection()),
+                // getJWTSigningKeys_Transaction reads every key
+                IndexDefinition.primary(config.getJWTSigningKeysCollection()));
+    }
+
+    public synchronized void provision() {
+        CouchbaseConfig config = Config.getConfig(start);
+        if (provisioned || !config.isIndexProvisioningEnabled()) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + config.getIndexBuildTimeout();
+        Bucket bucket = ConnectionPool.getClientConnectedToBucket(start);
+
+        Map<String, List<IndexDefinition>> byCollection = new LinkedHashMap<>();
+        for (IndexDefinition definition : getDefinitions(config)) {
+            byCollection.computeIfAbsent(definition.collection, collection -> new ArrayList<>()).add(definition);
+        }
+
+        boolean allOnline = true;
+        for (Map.Entry<String, List<IndexDefinition>> collection : byCollection.entrySet()) {
+            try {
+                allOnline &= provision(bucket.collection(collection.getKey()).queryIndexes(), collection.getValue(),
+                        deadline);
+            } catch (CouchbaseException e) {
+                allOnline = false;
+                Logging.error(start, "Could not create the query indexes of " + collection.getKey(), false, e);
+            }
+        }
+        provisioned = allOnline;
+    }
+
+    // returns false if the indexes did not come online before the deadline
+    private boolean provision(CollectionQueryIndexManager indexes, List<IndexDefinition> definitions, long deadline) {
+        Set<String> existing = indexes.getAllIndexes().stream().map(QueryIndex::name).collect(Collectors.toSet());
+        List<String> created = new ArrayList<>();
+        for (IndexDefinition definition : definitions) {
+            if (!existing.contains(definition.name)) {
+                // creating an index that another node has just created is not an error
+                definition.create(indexes);
+                created.add(definition.name);
+            }
+        }
+        // this also builds indexes that were left deferred by an earlier start that did not get this far
+        indexes.buildDeferredIndexes();
+        if (!created.isEmpty()) {
+            Logging.info(start, "Created query indexes " + created, false);
+        }
+
+        // a primary index is watched by its name, #primary, like any other
+        List<String> names = definitions.stream().map(definition -> definition.name).collect(Collectors.toList());
+        try {
+            indexes.watchIndexes(names, Duration.ofMillis(Math.max(1, deadline - System.currentTimeMillis())));
+            return true;
+        } catch (TimeoutException e) {
+            Logging.info(start, "Query indexes " + names + " are still being built, continuing without them", false);
+            return false;
+        }
+    }
+
+    static class IndexDefinition {
+        final String collection;
+        final String name;
+        final List<String> fields;
+
+        IndexDefinition(String collection, String name, List<String> fields) {
+            this.collection = collection;
+            this.name = name;
+            this.fields = fields;
+        }
+
+        static IndexDefinition primary(String collection) {
+            return new IndexDefinition(collection, PRIMARY_INDEX_NAME, Collections.emptyList());
+        }
+
+        boolean isPrimary() {
+            return name.equals(PRIMARY_INDEX_NAME);
+        }
+
+        void create(CollectionQueryIndexManager indexes) {
+            if (isPrimary()) {
+                indexes.createPrimaryIndex(CreatePrimaryQueryIndexOptions.createPrimaryQueryIndexOptions()
+                        .ignoreIfExists(true).deferred(true));
+            } else {
+                indexes.createIndex(name, fields,
+                        CreateQueryIndexOptions.createQueryIndexOptions().ignoreIfExists(true).deferred(true));
+            }
+        }
+    }
+}
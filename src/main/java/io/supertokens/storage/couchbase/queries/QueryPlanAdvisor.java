@@ -0,0 +1,175 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.couchbase.queries;
+
+import com.couchbase.client.core.error.CouchbaseException;
+import com.couchbase.client.java.Scope;
+import com.couchbase.client.java.json.JsonArray;
+import com.couchbase.client.java.json.JsonObject;
+import com.couchbase.client.java.query.QueryOptions;
+import com.couchbase.client.java.query.QueryResult;
+import io.supertokens.storage.couchbase.ConnectionPool;
+import io.supertokens.storage.couchbase.ResourceDistributor;
+import io.supertokens.storage.couchbase.Start;
+import io.supertokens.storage.couchbase.config.Config;
+import io.supertokens.storage.couchbase.output.Logging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+// Runs EXPLAIN on the plugin's N1QL statements when the storage is initialised, and reports plans that scan a primary
+// index, read documents through an index that does not cover the statement, or fetch documents without a limit. The
+// findings are logged and kept in getReports(), so a cluster that is missing an index shows up at deploy time.
+// Statements that read a whole collection on purpose only have their findings logged at debug level.
+public class QueryPlanAdvisor extends ResourceDistributor.SingletonResource {
+
+    private static final String RESOURCE_KEY = "io.supertokens.storage.couchbase.queries.QueryPlanAdvisor";
+
+    private final Start start;
+    private volatile List<PlanReport> reports = Collections.emptyList();
+
+    private QueryPlanAdvisor(Start start) {
+        this.start = start;
+    }
+
+    public static QueryPlanAdvisor getInstance(Start start) {
+        ResourceDistributor.SingletonResource instance = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (instance == null) {
+            instance = start.getResourceDistributor().setResource(RESOURCE_KEY, new QueryPlanAdvisor(start));
+        }
+        return (QueryPlanAdvisor) instance;
+    }
+
+    public void run() {
+        if (!Config.getConfig(start).isQueryPlanAdvisorEnabled()) {
+            return;
+        }
+        Scope scope = ConnectionPool.getClientConnectedToBucket(start).defaultScope();
+        List<PlanReport> next = new ArrayList<>();
+        for (Map.Entry<String, PreparedStatements.Definition> statement : PreparedStatements.getInstance(start)
+                .getDefinitions().entrySet()) {
+            String text = statement.getValue().statement;
+            try {
+                // named parameters have to be bound for the statement to be planned
+                QueryOptions options = QueryOptions.queryOptions();
+                if (statement.getValue().warmUpParameters != null) {
+                    options.parameters(statement.getValue().warmUpParameters);
+                }
+                QueryResult result = scope.query("EXPLAIN " + text, options);
+                PlanReport report = analyse(statement.getKey(), text, result.rowsAsObject().get(0));
+                next.add(report);
+                if (report.hasFindings() && !statement.getValue().fullScan) {
+                    Logging.warn(start, report.toString());
+                } else {
+                    Logging.debug(start, report.toString());
+                }
+            } catch (CouchbaseException e) {
+                Logging.error(start, "Could not explain the statement of " + statement.getKey(), false, e);
+            }
+        }
+        reports = Collections.unmodifiableList(next);
+    }
+
+    // the reports of the last run, one per statement that could be explained
+    public List<PlanReport> getReports() {
+        return reports;
+    }
+
+    public static PlanReport analyse(String name, String statement, JsonObject explained) {
+        PlanReport report = new PlanReport(name, statement);
+        visit(explained, report);
+        report.unboundedFetch = report.fetch && !report.limit;
+        return report;
+    }
+
+    private static void visit(Object node, PlanReport report) {
+        if (node instanceof JsonArray) {
+            for (Object child : (JsonArray) node) {
+                visit(child, report);
+            }
+            return;
+        }
+        if (!(node instanceof JsonObject)) {
+            return;
+        }
+        JsonObject object = (JsonObject) node;
+        String operator = object.containsKey("#operator") ? object.getString("#operator") : "";
+        if (operator.startsWith("PrimaryScan")) {
+            report.primaryScan = true;
+            report.indexes.add(object.getString("index"));
+        } else if (operator.startsWith("IndexScan")) {
+            report.indexes.add(object.getString("index"));
+            if (!object.containsKey("covers")) {
+                report.nonCoveringIndex = true;
+            }
+        } else if (operator.equals("Fetch")) {
+            report.fetch = true;
+        } else if (operator.equals("Limit")) {
+            report.limit = true;
+        }
+        // with the cost based optimizer each operator estimates its cost, the largest of which is the plan's total
+        if (object.get("cost") instanceof Number) {
+            double cost = object.getNumber("cost").doubleValue();
+            report.estimatedCost = report.estimatedCost == null ? cost : Math.max(report.estimatedCost, cost);
+        }
+        for (String key : object.getNames()) {
+            visit(object.get(key), report);
+        }
+    }
+
+    public static class PlanReport {
+        public final String name;
+        public final String statement;
+        public final List<String> indexes = new ArrayList<>();
+        public boolean primaryScan = false;
+        public boolean nonCoveringIndex = false;
+        public boolean unboundedFetch = false;
+        // null if the cluster does not estimate costs
+        public Double estimatedCost = null;
+
+        private boolean fetch = false;
+        private boolean limit = false;
+
+        PlanReport(String name, String statement) {
+            this.name = name;
+            this.statement = statement;
+        }
+
+        public boolean hasFindings() {
+            return primaryScan || nonCoveringIndex || unboundedFetch;
+        }
+
+        @Override
+        public String toString() {
+            List<String> findings = new ArrayList<>();
+            if (primaryScan) {
+                findings.add("primary scan");
+            }
+            if (nonCoveringIndex) {
+                findings.add("non covering index");
+            }
+            if (unboundedFetch) {
+                findings.add("unbounded fetch");
+            }
+            return "Query plan of " + name + " (" + statement + ") uses indexes " + indexes
+                    + (estimatedCost == null ? "" : " at an estimated cost of " + estimatedCost)
+                    + (findings.isEmpty() ? "" : ", found " + String.join(", ", findings));
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.couchbase.queries;
+
+import com.couchbase.client.core.error.DocumentNotFoundException;
+import com.couchbase.client.java.AsyncCollection;
+import com.couchbase.client.java.Collection;
+import com.couchbase.client.java.kv.GetOptions;
+import com.couchbase.client.java.kv.GetResult;
+import com.couchbase.client.java.kv.MutateInOptions;
+import com.couchbase.client.java.kv.MutateInSpec;
+import com.couchbase.client.java.kv.StoreSemantics;
+import com.couchbase.client.java.kv.UpsertOptions;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.couchbase.Start;
+import io.supertokens.storage.couchbase.config.Config;
+import io.supertokens.storage.couchbase.utils.GsonTranscoder;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// Index of sessions by the minute ("slot") in which they expire, so that deleteAllExpiredSessions only has to look at
+// the sessions in slots that are already due instead of scanning all of them. A session is added to the slot of its
+// new expiry every time that changes and is never taken out of its old slot, so a slot can list sessions that have
+// since been refreshed. Whoever visits a slot therefore still checks each session's expires_at before removing it.
+//
+// Every login and most refreshes append to the slot of the current minute, so each slot is split into SHARDS
+// documents by a hash of the session handle. Those land on different vBuckets, and the appends do not all queue up
+// behind one key.
+public class SessionExpiryIndex {
+
+    /*
+     * Schema, in the key value collection, of the slot documents (the key is SLOT_KEY_PREFIX + slot + "_" + shard,
+     * where slot is the expiry time divided by SLOT_SIZE, and shard is that of the session handles it lists)
+     * {
+     * handles: [string],
+     * }
+     * and of the cursor document
+     * {
+     * next_slot: long, (the first slot that has not been visited yet)
+     * last_repair: long,
+     * }
+     */
+    static final String HANDLES = "handles";
+    static final String NEXT_SLOT = "next_slot";
+    static final String LAST_REPAIR = "last_repair";
+
+    static final long SLOT_SIZE = 60 * 1000;
+    // slots that are never visited, for example because no core was running, remove themselves after this
+    static final long SLOT_RETENTION = 2 * 24 * 60 * 60 * 1000L;
+    private static final String SLOT_KEY_PREFIX = "session_expiry_slot_";
+    static final int SHARDS = 16;
+    private static final String CURSOR_KEY = "session_expiry_index_cursor";
+
+    public static boolean isEnabled(Start start) {
+        return Config.getConfig(start).isSessionExpiryIndexEnabled();
+    }
+
+    static long getSlot(long expiry) {
+        return Math.floorDiv(expiry, SLOT_SIZE);
+    }
+
+    // a new session is added before it is written, so a session never exists without being in a slot. A refreshed one
+    // is added after its write has won its CAS, so that lost attempts do not add entries. A crash in between leaves it
+    // in the slot of its previous expiry only. When that slot is visited the session is not removed, since its
+    // expires_at has moved, and it is left to the repair scan, which puts it back into its slot, and to its own
+    // document expiry.
+    static void add(Start start, String sessionHandle, long expiry) {
+        if (!isEnabled(start)) {
+            return;
+        }
+        append(start, getSlot(expiry), getShard(sessionHandle), Collections.singletonList(sessionHandle));
+    }
+
+    static int getShard(String sessionHandle) {
+        return Math.floorMod(sessionHandle.hashCode(), SHARDS);
+    }
+
+    // null if nothing was indexed in this slot. All shards of the slot are read at once.
+    static List<String> getHandles(Start start, long slot) throws StorageQueryException {
+        AsyncCollection collection = KeyValueQueries.getKeyValueCollection(start).async();
+        List<CompletableFuture<GetResult>> reads = new ArrayList<>(SHARDS);
+        for (int shard = 0; shard < SHARDS; shard++) {
+            reads.add(collection.get(getKey(slot, shard),
+                    GetOptions.getOptions().transcoder(GsonTranscoder.INSTANCE)));
+        }
+        // a session that was added more than once is only listed once
+        Set<String> handles = new LinkedHashSet<>();
+        boolean found = false;
+        for (CompletableFuture<GetResult> read : reads) {
+            GetResult result;
+            try {
+                result = read.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof DocumentNotFoundException) {
+                    continue;
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new StorageQueryException(e);
+            }
+            found = true;
+            for (JsonElement handle : result.contentAs(JsonObject.class).getAsJsonArray(HANDLES)) {
+                handles.add(handle.getAsString());
+            }
+        }
+        return found ? new ArrayList<>(handles) : null;
+    }
+
+    static void removeSlot(Start start, long slot) {
+        Collection collection = KeyValueQueries.getKeyValueCollection(start);
+        for (int shard = 0; shard < SHARDS; shard++) {
+            try {
+                collection.remove(getKey(slot, shard));
+            } catch (DocumentNotFoundException ignored) {
+            }
+        }
+    }
+
+    // adds sessions that were found by a full scan to their slots if they are not in them yet, which covers sessions
+    // created before the index was enabled as well as ones whose add was lost
+    static void reconcile(Start start, Map<Long, List<String>> handlesBySlot) throws StorageQueryException {
+        for (Map.Entry<Long, List<String>> slot : handlesBySlot.entrySet()) {
+            List<String> indexed = getHandles(start, slot.getKey());
+            List<String> missing = new ArrayList<>(slot.getValue());
+            if (indexed != null) {
+                missing.removeAll(new LinkedHashSet<>(indexed));
+            }
+            Map<Integer, List<String>> missingByShard = new HashMap<>();
+            for (String sessionHandle : missing) {
+                missingByShard.computeIfAbsent(getShard(sessionHandle), shard -> new ArrayList<>()).add(sessionHandle);
+            }
+            for (Map.Entry<Integer, List<String>> shard : missingByShard.entrySet()) {
+                append(start, slot.getKey(), shard.getKey(), shard.getValue());
+            }
+        }
+    }
+
+    private static String getKey(long slot, int shard) {
+        return SLOT_KEY_PREFIX + slot + "_" + shard;
+    }
+
+    private static void append(Start start, long slot, int shard, List<String> sessionHandles) {
+        KeyValueQueries.getKeyValueCollection(start).mutateIn(getKey(slot, shard),
+                Collections.singletonList(MutateInSpec.arrayAppend(HANDLES, sessionHandles).createPath()),
+                MutateInOptions.mutateInOptions().storeSemantics(StoreSemantics.UPSERT)
+                        .expiry(Instant.ofEpochMilli((slot + 1) * SLOT_SIZE + SLOT_RETENTION)));
+    }
+
+    static Cursor loadCursor(Start start) {
+        CasEngine.Versioned current = CasEngine.read(KeyValueQueries.getKeyValueCollection(start), CURSOR_KEY);
+        if (current == null) {
+            return new Cursor(0, 0);
+        }
+        return new Cursor(current.content.get(NEXT_SLOT).getAsLong(), current.content.get(LAST_REPAIR).getAsLong());
+    }
+
+    static void saveCursor(Start start, Cursor cursor) {
+        JsonObject document = new JsonObject();
+        document.addProperty(NEXT_SLOT, cursor.nextSlot);
+        document.addProperty(LAST_REPAIR, cursor.lastRepair);
+        KeyValueQueries.getKeyValueCollection(start).upsert(CURSOR_KEY, document,
+                UpsertOptions.upsertOptions().transcoder(GsonTranscoder.INSTANCE));
+    }
+
+    static class Cursor {
+        long nextSlot;
+        long lastRepair;
+
+        Cursor(long nextSlot, long lastRepair) {
+            this.nextSlot = nextSlot;
+            this.lastRepair = lastRepair;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.couchbase.queries;
+
+import com.couchbase.client.java.kv.LookupInResult;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.pluginInterface.session.noSqlStorage.SessionInfoWithLastUpdated;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+// Builds a SessionInfoWithLastUpdated straight from the raw bytes of session documents in a single streaming pass
+// over each. Only session_data and jwt_user_payload are turned into trees, since that is what SessionInfo holds. Every
+// other field is read as a scalar, and fields we do not know about are skipped without being parsed into anything.
+// A session can be put together from several sources (for example a session info document and its payload document),
+// in which case a field read later replaces one read earlier.
+public class SessionInfoDecoder {
+
+    private String userId = null;
+    private String refreshTokenHash2 = null;
+    private JsonObject sessionData = null;
+    private long expiresAt = 0;
+    private JsonObject jwtUserPayload = null;
+    private long createdAtTime = 0;
+    private boolean useStaticKey = false;
+    private String lastUpdatedSign = null;
+
+    // sessionHandle is the document key, so the copy of it inside the document is skipped
+    public static SessionInfoWithLastUpdated decode(String sessionHandle, byte[] content) throws StorageQueryException {
+        return new SessionInfoDecoder().readDocument(content).toSessionInfo(sessionHandle);
+    }
+
+    public SessionInfoDecoder readDocument(byte[] content) throws StorageQueryException {
+        try (JsonReader reader = newReader(content)) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                readField(reader.nextName(), reader);
+            }
+            reader.endObject();
+            return this;
+        } catch (IOException | RuntimeException e) {
+            throw new StorageQueryException(e);
+        }
+    }
+
+    // reads the result of a lookupIn whose i-th spec was a get of paths[i]. Paths that do not exist are left as is.
+    public SessionInfoDecoder readLookup(String[] paths, LookupInResult result) throws StorageQueryException {
+        try {
+            for (int i = 0; i < paths.length; i++) {
+                if (!result.exists(i)) {
+                    continue;
+                }
+                try (JsonReader reader = newReader(result.contentAsBytes(i))) {
+                    readField(paths[i], reader);
+                }
+            }
+            return this;
+        } catch (IOException | RuntimeException e) {
+            throw new StorageQueryException(e);
+        }
+    }
+
+    // session_data and jwt_user_payload default to empty objects if they were never read
+    public SessionInfoWithLastUpdated toSessionInfo(String sessionHandle) {
+        return new SessionInfoWithLastUpdated(sessionHandle, userId, refreshTokenHash2,
+                sessionData == null ? new JsonObject() : sessionData, expiresAt,
+                jwtUserPayload == null ? new JsonObject() : jwtUserPayload, createdAtTime, useStaticKey,
+                lastUpdatedSign);
+    }
+
+    // for reads that do not look up session_data, which is then null, so that a caller that needs it fails instead of
+    // getting an empty object
+    public SessionInfoWithLastUpdated toSessionInfoWithoutSessionData(String sessionHandle) {
+        return new SessionInfoWithLastUpdated(sessionHandle, userId, refreshTokenHash2, null, expiresAt,
+                jwtUserPayload == null ? new JsonObject() : jwtUserPayload, createdAtTime, useStaticKey,
+                lastUpdatedSign);
+    }
+
+    public boolean hasPayload() {
+        return sessionData != null || jwtUserPayload != null;
+    }
+
+    boolean hasJwtUserPayload() {
+        return jwtUserPayload != null;
+    }
+
+    static JsonReader newReader(byte[] content) {
+        JsonReader reader = new JsonReader(
+                new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.UTF_8));
+        // sub-document values may be top level scalars, which a strict reader refuses
+        reader.setLenient(true);
+        return reader;
+    }
+
+    private void readField(String name, JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return;
+        }
+        switch (name) {
+        case SessionQueries.USER_ID:
+            userId = reader.nextString();
+            break;
+        case SessionQueries.REFRESH_TOKEN_HASH_2:
+            refreshTokenHash2 = reader.nextString();
+            break;
+        case SessionQueries.SESSION_DATA:
+            sessionData = new JsonParser().parse(reader).getAsJsonObject();
+            break;
+        case SessionQueries.EXPIRES_AT:
+            expiresAt = reader.nextLong();
+            break;
+        case SessionQueries.JWT_USER_PAYLOAD:
+            jwtUserPayload = new JsonParser().parse(reader).getAsJsonObject();
+            break;
+        case SessionQueries.CREATED_AT_TIME:
+            createdAtTime = reader.nextLong();
+            break;
+        case SessionQueries.USE_STATIC_KEY:
+            useStaticKey = reader.nextBoolean();
+            break;
+        case SessionQueries.LAST_UPDATED_SIGN:
+            lastUpdatedSign = reader.nextString();
+            break;
+        default:
+            reader.skipValue();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.couchbase.queries;
+
+import com.couchbase.client.core.msg.kv.MutationToken;
+import com.couchbase.client.java.kv.MutationResult;
+import com.couchbase.client.java.kv.MutationState;
+import io.supertokens.storage.couchbase.ResourceDistributor;
+import io.supertokens.storage.couchbase.Start;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// The mutation tokens of this node's latest writes to session info documents that change which sessions a user's
+// statements find, kept per user id and at most one per vbucket. A statement about a user runs consistentWith() that
+// user's tokens (at_plus), so it waits only until the index has caught up with the writes made here for that user,
+// instead of, as with request_plus, with every mutation in the bucket.
+//
+// The tokens of a user are dropped once the user has not been written to for TOKEN_TTL, by when the index has long
+// caught up with them, and the least recently written users are dropped beyond MAX_USERS. A user without tokens is
+// listed without waiting for the index.
+public class SessionMutationTokens extends ResourceDistributor.SingletonResource {
+
+    private static final String RESOURCE_KEY = "io.supertokens.storage.couchbase.queries.SessionMutationTokens";
+
+    private static final long TOKEN_TTL = 60000;
+    private static final int MAX_USERS = 10000;
+
+    // in the order the users were last written to
+    private final LinkedHashMap<String, UserTokens> users = new LinkedHashMap<String, UserTokens>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, UserTokens> eldest) {
+            return size() > MAX_USERS;
+        }
+    };
+
+    private SessionMutationTokens() {
+    }
+
+    public static SessionMutationTokens getInstance(Start start) {
+        ResourceDistributor.SingletonResource instance = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (instance == null) {
+            instance = start.getResourceDistributor().setResource(RESOURCE_KEY, new SessionMutationTokens());
+        }
+        return (SessionMutationTokens) instance;
+    }
+
+    // only for writes that change the user_id or expires_at of a session, including its creation and removal
+    void add(String userId, MutationResult result) {
+        result.mutationToken().ifPresent(token -> add(userId, token));
+    }
+
+    synchronized void add(String userId, MutationToken token) {
+        long now = System.currentTimeMillis();
+        // removed and put back, so that the user moves to the end of the eviction order
+        UserTokens tokens = users.remove(userId);
+        if (tokens == null || now - tokens.writtenAt >= TOKEN_TTL) {
+            tokens = new UserTokens();
+        }
+        tokens.writtenAt = now;
+        users.put(userId, tokens);
+        // a token of another partition uuid is from after a failover, and sequence numbers start over with it
+        tokens.latest.merge(token.partitionID(), token,
+                (current, next) -> next.partitionUUID() != current.partitionUUID()
+                        || next.sequenceNumber() > current.sequenceNumber() ? next : current);
+    }
+
+    // null if this node has not written any session of the user within TOKEN_TTL
+    synchronized MutationState getState(String userId) {
+        UserTokens tokens = users.get(userId);
+        if (tokens == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - tokens.writtenAt >= TOKEN_TTL) {
+            users.remove(userId);
+            return null;
+        }
+        return MutationState.from(tokens.latest.values().toArray(new MutationToken[0]));
+    }
+
+    private static final class UserTokens {
+        private final Map<Short, MutationToken> latest = new HashMap<>();
+        private long writtenAt;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.couchbase.queries;
+
+import com.couchbase.client.java.kv.UpsertOptions;
+import com.google.gson.JsonObject;
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.couchbase.BackgroundTasks;
+import io.supertokens.storage.couchbase.ConnectionPool;
+import io.supertokens.storage.couchbase.Lease;
+import io.supertokens.storage.couchbase.ResourceDistributor;
+import io.supertokens.storage.couchbase.Start;
+import io.supertokens.storage.couchbase.config.Config;
+import io.supertokens.storage.couchbase.output.Logging;
+import io.supertokens.storage.couchbase.utils.GsonTranscoder;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// Moves sessions written in the single document layout into the split layout once, in the background, after the
+// layout is switched to "split". Sessions it has not reached yet are still read correctly, and are migrated on their
+// first updateSession, so this only has to finish eventually. Running it on several nodes at once is safe, but with
+// the maintenance lease enabled only one node runs it, and the others try again every RETRY_INTERVAL until it is
+// done. Once a run has scanned every session, a marker document in the key value collection says so, and later starts
+// skip the scan. Batch size and the number of sessions that are migrated at once follow MaintenanceThrottle.
+public class SessionPayloadMigration extends ResourceDistributor.SingletonResource {
+
+    private static final String RESOURCE_KEY = "io.supertokens.storage.couchbase.queries.SessionPayloadMigration";
+
+    /*
+     * Schema of the marker, in the key value collection (the key is DONE_KEY)
+     * {
+     * finished_at: long,
+     * }
+     */
+    private static final String DONE_KEY = "session_payload_migration_done";
+    private static final String FINISHED_AT = "finished_at";
+    private static final String LEASE_NAME = "session_payload_migration";
+    private static final long RETRY_INTERVAL = 10 * 60 * 1000;
+    // sessions scanned between two checks of the lease, and migrated at once, before MaintenanceThrottle scales them
+    private static final int BATCH_SIZE = 200;
+    private static final int CONCURRENCY = 4;
+
+    private final Start start;
+    private final boolean enabled;
+    private final MaintenanceThrottle throttle;
+
+    private final Object lock = new Object();
+    private BackgroundTasks scheduledOn = null;
+    private ScheduledFuture<?> scheduled = null;
+
+    private final AtomicLong scanned = new AtomicLong();
+    private volatile boolean finished = false;
+
+    private SessionPayloadMigration(Start start) {
+        this.start = start;
+        this.enabled = Config.getConfig(start).isSessionPayloadSplit();
+        this.throttle = MaintenanceThrottle.getInstance(start);
+    }
+
+    public static SessionPayloadMigration getInstance(Start start) {
+        ResourceDistributor.SingletonResource instance = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (instance == null) {
+            instance = start.getResourceDistributor().setResource(RESOURCE_KEY, new SessionPayloadMigration(start));
+        }
+        return (SessionPayloadMigration) instance;
+    }
+
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        BackgroundTasks tasks = BackgroundTasks.getInstance(start);
+        synchronized (lock) {
+            if (scheduledOn == tasks) {
+                return;
+            }
+            scheduledOn = tasks;
+            scheduled = tasks.scheduleWithFixedDelay(start, "session payload migration", this::migrate, 0,
+                    RETRY_INTERVAL);
+        }
+    }
+
+    void migrate() {
+        if (finished || KeyValueQueries.getKeyValueCollection(start).exists(DONE_KEY).exists()) {
+            finish();
+            return;
+        }
+        Lease lease = ConnectionPool.getLease(start, LEASE_NAME);
+        try {
+            lease.runIfAcquired(() -> {
+                long startTime = System.currentTimeMillis();
+                for (String prefix : SessionQueries.SESSION_HANDLE_PREFIXES) {
+                    try (Stream<String> handles = SessionQueries.scanSessionHandles(start, prefix)) {
+                        Iterator<String> it = handles.iterator();
+                        List<String> batch = new ArrayList<>(BATCH_SIZE);
+                        int currentBatchSize = throttle.getBatchSize(BATCH_SIZE);
+                        while (it.hasNext()) {
+                            batch.add(it.next());
+                            if (batch.size() >= currentBatchSize || !it.hasNext()) {
+                                if (!start.isStorageLayerEnabled() || !lease.isHeld()) {
+                                    // tried again on the next run
+                                    return false;
+                                }
+                                migrateAll(batch);
+                                scanned.addAndGet(batch.size());
+                                batch.clear();
+                                currentBatchSize = throttle.getBatchSize(BATCH_SIZE);
+                            }
+                        }
+                    }
+                }
+                JsonObject marker = new JsonObject();
+                marker.addProperty(FINISHED_AT, System.currentTimeMillis());
+                KeyValueQueries.getKeyValueCollection(start).upsert(DONE_KEY, marker,
+                        UpsertOptions.upsertOptions().transcoder(GsonTranscoder.INSTANCE));
+                Logging.info(start, "Finished moving sessions to the split storage layout, checked " + scanned.get()
+                        + " sessions in " + (System.currentTimeMillis() - startTime) + "ms", false);
+                finish();
+                return true;
+            });
+        } catch (StorageQueryException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // with as many migrations in flight at once as the throttle allows
+    private void migrateAll(List<String> sessionHandles) throws StorageQueryException {
+        try {
+            Flux.fromIterable(sessionHandles)
+                    .flatMap(sessionHandle -> Mono
+                            .fromCallable(() -> SessionQueries.migrateSessionPayload(start, sessionHandle))
+                            .subscribeOn(Schedulers.boundedElastic()), throttle.getConcurrency(CONCURRENCY))
+                    .then()
+                    .block();
+        } catch (RuntimeException e) {
+            Throwable cause = Exceptions.unwrap(e);
+            if (cause instanceof StorageQueryException) {
+                throw (StorageQueryException) cause;
+            }
+            throw e;
+        }
+    }
+
+    private void finish() {
+        finished = true;
+        synchronized (lock) {
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+    }
+
+    public long getScannedCount() {
+        return scanned.get();
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+}
@@ -0,0 +1,649 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.couchbase.queries;
+
+import com.couchbase.client.core.error.DocumentExistsException;
+import com.couchbase.client.core.error.DocumentNotFoundException;
+import com.couchbase.client.java.Collection;
+import com.couchbase.client.java.kv.GetResult;
+import com.couchbase.client.java.kv.InsertOptions;
+import com.couchbase.client.java.kv.LookupInResult;
+import com.couchbase.client.java.kv.LookupInSpec;
+import com.couchbase.client.java.kv.MutateInOptions;
+import com.couchbase.client.java.kv.MutateInSpec;
+import com.couchbase.client.java.kv.MutationResult;
+import com.couchbase.client.java.kv.ReplaceOptions;
+import com.couchbase.client.java.kv.ScanOptions;
+import com.couchbase.client.java.kv.ScanResult;
+import com.couchbase.client.java.kv.ScanType;
+import com.couchbase.client.java.kv.UpsertOptions;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.pluginInterface.session.noSqlStorage.SessionInfoWithLastUpdated;
+import io.supertokens.storage.couchbase.ConnectionPool;
+import io.supertokens.storage.couchbase.Start;
+import io.supertokens.storage.couchbase.cache.SessionInfoCache;
+import io.supertokens.storage.couchbase.cache.SessionReadCoalescer;
+import io.supertokens.storage.couchbase.config.Config;
+import io.supertokens.storage.couchbase.utils.GsonTranscoder;
+import io.supertokens.storage.couchbase.utils.Utils;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class SessionQueries {
+
+    /*
+     * Schema for the collection is (the document key is the session handle)
+     * {
+     * session_handle: string,
+     * user_id: string,
+     * refresh_token_hash_2: string,
+     * session_data: object,
+     * expires_at: long,
+     * jwt_user_payload: object,
+     * created_at_time: long,
+     * use_static_key: boolean,
+     * last_updated_sign: string,
+     * }
+     *
+     * With couchbase_session_storage_layout set to "split", session_data and jwt_user_payload live in a payload
+     * document with the same key in the session payload collection instead:
+     * {
+     * session_data: object,
+     * jwt_user_payload: object,
+     * }
+     * Sessions written before the switch keep everything in the session info document until they are migrated, so
+     * anything found in the session info document is read as well. The payload document is always written before the
+     * fields are removed from the session info document, so a session is never without its payload.
+     *
+     * The session info document then also has payload_expires_at: long, the expiry of the payload document. Payloads
+     * are given up to one session lifetime more than their session, so that a refresh only has to touch the payload
+     * when the session would outlive it, and not every time. Deleted and swept sessions remove their payloads.
+     */
+    static final String SESSION_HANDLE = "session_handle";
+    static final String USER_ID = "user_id";
+    static final String REFRESH_TOKEN_HASH_2 = "refresh_token_hash_2";
+    static final String SESSION_DATA = "session_data";
+    static final String EXPIRES_AT = "expires_at";
+    static final String JWT_USER_PAYLOAD = "jwt_user_payload";
+    static final String CREATED_AT_TIME = "created_at_time";
+    static final String USE_STATIC_KEY = "use_static_key";
+    static final String LAST_UPDATED_SIGN = "last_updated_sign";
+    static final String PAYLOAD_EXPIRES_AT = "payload_expires_at";
+
+    // session handles generated by the core are UUIDs, so these prefixes partition all of them
+    public static final String[] SESSION_HANDLE_PREFIXES = { "0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "a",
+            "b", "c", "d", "e", "f" };
+
+    // what the refresh flow reads from a session. session_data is left out since it can be large and refreshing never
+    // looks at it. jwt_user_payload is kept, because the new access token is built from it.
+    private static final String[] TRANSACTION_LOOKUP_PATHS = { USER_ID, REFRESH_TOKEN_HASH_2, EXPIRES_AT,
+            JWT_USER_PAYLOAD, CREATED_AT_TIME, USE_STATIC_KEY, LAST_UPDATED_SIGN };
+    private static final List<LookupInSpec> TRANSACTION_LOOKUP_SPECS = Arrays.stream(TRANSACTION_LOOKUP_PATHS)
+            .map(LookupInSpec::get).collect(Collectors.toList());
+
+    private static final String[] PAYLOAD_PATHS = { SESSION_DATA, JWT_USER_PAYLOAD };
+    // the payload paths followed by expires_at
+    private static final List<LookupInSpec> MIGRATION_LOOKUP_SPECS = Arrays.asList(LookupInSpec.get(SESSION_DATA),
+            LookupInSpec.get(JWT_USER_PAYLOAD), LookupInSpec.get(EXPIRES_AT));
+    private static final String[] TRANSACTION_PAYLOAD_LOOKUP_PATHS = { JWT_USER_PAYLOAD };
+    private static final List<LookupInSpec> TRANSACTION_PAYLOAD_LOOKUP_SPECS = Collections.singletonList(
+            LookupInSpec.get(JWT_USER_PAYLOAD));
+
+    public static void createNewSession(Start start, String sessionHandle, String userId, String refreshTokenHash2,
+            JsonObject userDataInDatabase, long expiry, JsonObject userDataInJWT, long createdAtTime,
+            boolean useStaticKey) {
+        // the core's JsonObjects are added by reference and written out directly by the transcoder
+        JsonObject document = new JsonObject();
+        document.addProperty(SESSION_HANDLE, sessionHandle);
+        document.addProperty(USER_ID, userId);
+        document.addProperty(REFRESH_TOKEN_HASH_2, refreshTokenHash2);
+        document.add(SESSION_DATA, userDataInDatabase);
+        document.addProperty(EXPIRES_AT, expiry);
+        document.add(JWT_USER_PAYLOAD, userDataInJWT);
+        document.addProperty(CREATED_AT_TIME, createdAtTime);
+        document.addProperty(USE_STATIC_KEY, useStaticKey);
+        document.addProperty(LAST_UPDATED_SIGN, Utils.getUUID());
+
+        if (Config.getConfig(start).isSessionPayloadSplit()) {
+            JsonObject payload = new JsonObject();
+            payload.add(SESSION_DATA, document.remove(SESSION_DATA));
+            payload.add(JWT_USER_PAYLOAD, document.remove(JWT_USER_PAYLOAD));
+            long payloadExpiry = getPayloadExpiry(expiry);
+            getSessionPayloadCollection(start).upsert(sessionHandle, payload, UpsertOptions.upsertOptions()
+                    .expiry(documentExpiry(payloadExpiry)).transcoder(GsonTranscoder.INSTANCE));
+            document.addProperty(PAYLOAD_EXPIRES_AT, payloadExpiry);
+        }
+        SessionExpiryIndex.add(start, sessionHandle, expiry);
+        UserSessionIndex.getInstance(start).put(userId, sessionHandle, expiry);
+        SessionMutationTokens.getInstance(start).add(userId, getSessionInfoCollection(start).insert(sessionHandle,
+                document, InsertOptions.insertOptions().expiry(documentExpiry(expiry))
+                        .transcoder(GsonTranscoder.INSTANCE)));
+    }
+
+    public static int updateSession(Start start, String sessionHandle, JsonObject sessionData, JsonObject jwtPayload)
+            throws StorageQueryException {
+        Collection collection = getSessionInfoCollection(start);
+        List<String> paths = new ArrayList<>();
+        List<JsonObject> values = new ArrayList<>();
+        if (sessionData != null) {
+            paths.add(SESSION_DATA);
+            values.add(sessionData);
+        }
+        if (jwtPayload != null) {
+            paths.add(JWT_USER_PAYLOAD);
+            values.add(jwtPayload);
+        }
+        if (paths.isEmpty()) {
+            return collection.exists(sessionHandle).exists() ? 1 : 0;
+        }
+
+        boolean split = Config.getConfig(start).isSessionPayloadSplit();
+        if (split) {
+            collection = getSessionPayloadCollection(start);
+        }
+        List<LookupInSpec> specs = paths.stream().map(LookupInSpec::get).collect(Collectors.toList());
+        LookupInResult current = lookupIn(collection, sessionHandle, specs);
+        if (current == null && split && migrateSessionPayload(start, sessionHandle)) {
+            current = lookupIn(collection, sessionHandle, specs);
+        }
+        if (current == null) {
+            return 0;
+        }
+
+        // each changed field is replaced as a whole, so this needs no CAS: a concurrent update either lands before
+        // ours and is overwritten, or after our read and wins, same as with a full document write
+        List<MutateInSpec> changes = new ArrayList<>();
+        for (int i = 0; i < paths.size(); i++) {
+            if (!current.exists(i) || !values.get(i).equals(parseJson(current.contentAsBytes(i)))) {
+                changes.add(MutateInSpec.upsert(paths.get(i), values.get(i)));
+            }
+        }
+        if (changes.isEmpty()) {
+            return 1;
+        }
+
+        try {
+            collection.mutateIn(sessionHandle, changes,
+                    MutateInOptions.mutateInOptions().preserveExpiry(true).serializer(GsonTranscoder.INSTANCE));
+            return 1;
+        } catch (DocumentNotFoundException e) {
+            return 0;
+        }
+    }
+
+    public static boolean updateSessionInfo_Transaction(Start start, String sessionHandle, String refreshTokenHash2,
+            long expiry, String lastUpdatedSign) throws StorageQueryException {
+        Collection collection = getSessionInfoCollection(start);
+        return CasEngine.getInstance(start).run("updateSessionInfo_Transaction", () -> {
+            LookupInResult current;
+            try {
+                current = collection.lookupIn(sessionHandle,
+                        Arrays.asList(LookupInSpec.get(LAST_UPDATED_SIGN), LookupInSpec.get(EXPIRES_AT),
+                                LookupInSpec.get(USER_ID), LookupInSpec.get(PAYLOAD_EXPIRES_AT)));
+            } catch (DocumentNotFoundException e) {
+                return false;
+            }
+            if (!current.exists(0) || !current.contentAs(0, String.class).equals(lastUpdatedSign)) {
+                return false;
+            }
+            List<MutateInSpec> changes = new ArrayList<>(Arrays.asList(
+                    MutateInSpec.upsert(REFRESH_TOKEN_HASH_2, refreshTokenHash2),
+                    MutateInSpec.upsert(EXPIRES_AT, expiry),
+                    MutateInSpec.upsert(LAST_UPDATED_SIGN, Utils.getUUID())));
+            long payloadExpiresAt = current.exists(3) ? current.contentAs(3, Long.class) : -1;
+            if (Config.getConfig(start).isSessionPayloadSplit() && expiry > payloadExpiresAt) {
+                // a touch rewrites and replicates the whole payload, so it is only done when the session would
+                // otherwise outlive it. The payload is extended first: if the write below then fails, the payload
+                // merely outlives its session for a while, whereas the other way round a live session could lose it.
+                long payloadExpiry = getPayloadExpiry(expiry);
+                try {
+                    getSessionPayloadCollection(start).touch(sessionHandle, documentExpiry(payloadExpiry));
+                    changes.add(MutateInSpec.upsert(PAYLOAD_EXPIRES_AT, payloadExpiry));
+                } catch (DocumentNotFoundException ignored) {
+                    // not migrated yet, in which case the payload is still in the session info document
+                }
+            }
+            MutationResult result = CasEngine.mutate(collection, sessionHandle, changes, current.cas(),
+                    MutateInOptions.mutateInOptions().expiry(documentExpiry(expiry)));
+            long previousExpiry = current.exists(1) ? current.contentAs(1, Long.class) : -1;
+            // the new expires_at decides whether the session is listed by getAllNonExpiredSessionHandlesForUser
+            if (previousExpiry != expiry && current.exists(2)) {
+                SessionMutationTokens.getInstance(start).add(current.contentAs(2, String.class), result);
+            }
+            // only once the write has won its CAS, so that attempts that lose it do not add to the indexes. A crash
+            // between the write and these leaves the session in the slot of its previous expiry only, and with its
+            // previous expiry in the user session index. See SessionExpiryIndex.add and UserSessionIndex.put for why
+            // both are tolerated.
+            if (SessionExpiryIndex.getSlot(previousExpiry) != SessionExpiryIndex.getSlot(expiry)) {
+                SessionExpiryIndex.add(start, sessionHandle, expiry);
+            }
+            if (current.exists(2)) {
+                UserSessionIndex.getInstance(start).put(current.contentAs(2, String.class), sessionHandle, expiry);
+            }
+            return true;
+        });
+    }
+
+    // moves session_data and jwt_user_payload of a session that is still in the single document layout out into its
+    // payload document. Returns false if the session does not exist.
+    static boolean migrateSessionPayload(Start start, String sessionHandle) throws StorageQueryException {
+        Collection collection = getSessionInfoCollection(start);
+        Collection payloadCollection = getSessionPayloadCollection(start);
+        return CasEngine.getInstance(start).run("migrateSessionPayload", () -> {
+            LookupInResult current = lookupIn(collection, sessionHandle, MIGRATION_LOOKUP_SPECS);
+            if (current == null) {
+                return false;
+            }
+            JsonObject payload = new JsonObject();
+            List<MutateInSpec> changes = new ArrayList<>();
+            for (int i = 0; i < PAYLOAD_PATHS.length; i++) {
+                if (current.exists(i)) {
+                    payload.add(PAYLOAD_PATHS[i], parseJson(current.contentAsBytes(i)));
+                    changes.add(MutateInSpec.remove(PAYLOAD_PATHS[i]));
+                }
+            }
+            if (changes.isEmpty()) {
+                return true;
+            }
+            // sessions written before documents had an expiry get one here as well
+            long sessionExpiry = current.contentAs(PAYLOAD_PATHS.length, Long.class);
+            Instant expiry = documentExpiry(sessionExpiry);
+            // if another migration inserted the payload first, it did so with the same expiry
+            changes.add(MutateInSpec.upsert(PAYLOAD_EXPIRES_AT, sessionExpiry));
+
+            try {
+                payloadCollection.insert(sessionHandle, payload,
+                        InsertOptions.insertOptions().expiry(expiry).transcoder(GsonTranscoder.INSTANCE));
+            } catch (DocumentExistsException e) {
+                // another migration got here first. A node still on the single layout may have written these fields
+                // into the session info document since then, in which case what we read is newer than what that
+                // migration copied, and replaces it before the fields are removed here.
+                CasEngine.Versioned existing = CasEngine.read(payloadCollection, sessionHandle);
+                if (existing == null) {
+                    // removed in between, so we start over
+                    throw e;
+                }
+                boolean changed = false;
+                for (Map.Entry<String, JsonElement> field : payload.entrySet()) {
+                    if (!field.getValue().equals(existing.content.get(field.getKey()))) {
+                        existing.content.add(field.getKey(), field.getValue());
+                        changed = true;
+                    }
+                }
+                if (changed) {
+                    try {
+                        payloadCollection.replace(sessionHandle, existing.content, ReplaceOptions.replaceOptions()
+                                .cas(existing.cas).expiry(expiry).transcoder(GsonTranscoder.INSTANCE));
+                    } catch (DocumentNotFoundException removed) {
+                        throw e;
+                    }
+                }
+            }
+            // if our read of the session info document is out of date, this is a conflict and we start over
+            CasEngine.mutate(collection, sessionHandle, changes, current.cas(),
+                    MutateInOptions.mutateInOptions().expiry(expiry));
+            return true;
+        });
+    }
+
+    // only reads the fields the refresh flow needs: userDataInDatabase (session_data) of the result is null, not the
+    // session's data. Callers that need it must use getSession.
+    public static SessionInfoWithLastUpdated getSessionInfo_Transaction(Start start, String sessionHandle)
+            throws StorageQueryException {
+        // the result of this is used for a compare and set, so it must never come from a (possibly stale) replica or
+        // from the cache, which does not see refreshes made by other nodes. It is also never cached, since it does not
+        // carry session_data.
+        long startTime = System.currentTimeMillis();
+        SessionDocument document = SessionReadCoalescer.getInstance(start).readForTransaction(sessionHandle,
+                () -> lookupSessionForTransaction(start, sessionHandle));
+        MaintenanceThrottle.getInstance(start).recordForeground(System.currentTimeMillis() - startTime);
+        return document == null ? null : document.info;
+    }
+
+    public static SessionDocument getSession(Start start, String sessionHandle) throws StorageQueryException {
+        SessionInfoCache cache = SessionInfoCache.getInstance(start);
+        SessionDocument cached = cache.get(sessionHandle);
+        if (cached != null) {
+            return cached;
+        }
+
+        long startTime = System.currentTimeMillis();
+        SessionDocument document = SessionReadCoalescer.getInstance(start).read(sessionHandle, () -> {
+            // stamped where the read actually starts, since callers that join it share what it read
+            long readStamp = cache.getReadStamp();
+            SessionDocument read = readSessionDocument(start, sessionHandle);
+            // the coalescer hands every caller a copy, so the cache can keep the document that was read
+            if (read != null && !read.fromReplica) {
+                cache.put(read, readStamp);
+            }
+            return read;
+        });
+        MaintenanceThrottle.getInstance(start).recordForeground(System.currentTimeMillis() - startTime);
+        return document;
+    }
+
+    private static SessionDocument lookupSessionForTransaction(Start start, String sessionHandle)
+            throws StorageQueryException {
+        // in the split layout the payload lookup runs alongside the one of the session info document
+        CompletableFuture<LookupInResult> payload = Config.getConfig(start).isSessionPayloadSplit()
+                ? getSessionPayloadCollection(start).async().lookupIn(sessionHandle, TRANSACTION_PAYLOAD_LOOKUP_SPECS)
+                : null;
+        LookupInResult result = lookupIn(getSessionInfoCollection(start), sessionHandle, TRANSACTION_LOOKUP_SPECS);
+        if (result == null) {
+            return null;
+        }
+        SessionInfoDecoder decoder = new SessionInfoDecoder().readLookup(TRANSACTION_LOOKUP_PATHS, result);
+        int sizeInBytes = sizeOf(result, TRANSACTION_LOOKUP_PATHS.length);
+
+        if (payload != null && !decoder.hasJwtUserPayload()) {
+            LookupInResult payloadResult = awaitPayload(payload);
+            if (payloadResult == null) {
+                // the payload lookup may have run just before a migration wrote it
+                payloadResult = lookupIn(getSessionPayloadCollection(start), sessionHandle,
+                        TRANSACTION_PAYLOAD_LOOKUP_SPECS);
+            }
+            if (payloadResult != null) {
+                decoder.readLookup(TRANSACTION_PAYLOAD_LOOKUP_PATHS, payloadResult);
+                sizeInBytes += sizeOf(payloadResult, TRANSACTION_PAYLOAD_LOOKUP_PATHS.length);
+            }
+        }
+        return new SessionDocument(decoder.toSessionInfoWithoutSessionData(sessionHandle), result.cas(), sizeInBytes,
+                false);
+    }
+
+    private static SessionDocument readSessionDocument(Start start, String sessionHandle)
+            throws StorageQueryException {
+        // in the split layout the payload is read alongside the session info document
+        CompletableFuture<GetResult> payload = Config.getConfig(start).isSessionPayloadSplit()
+                ? getSessionPayloadCollection(start).async().get(sessionHandle)
+                : null;
+
+        Collection collection = getSessionInfoCollection(start);
+        HedgedSessionReads hedgedReads = HedgedSessionReads.getInstance(start);
+        if (hedgedReads.isEnabled()) {
+            Optional<HedgedSessionReads.HedgedResult> hedged = hedgedReads.get(collection.async(), sessionHandle);
+            if (!hedged.isPresent()) {
+                return null;
+            }
+            return toSessionDocument(start, sessionHandle, hedged.get().result, payload, hedged.get().fromReplica);
+        }
+
+        GetResult result;
+        try {
+            result = collection.get(sessionHandle);
+        } catch (DocumentNotFoundException e) {
+            return null;
+        }
+        return toSessionDocument(start, sessionHandle, result, payload, false);
+    }
+
+    private static SessionDocument toSessionDocument(Start start, String sessionHandle, GetResult result,
+            CompletableFuture<GetResult> payload, boolean fromReplica) throws StorageQueryException {
+        byte[] content = result.contentAsBytes();
+        SessionInfoDecoder decoder = new SessionInfoDecoder().readDocument(content);
+        int sizeInBytes = content.length;
+
+        if (payload != null) {
+            GetResult payloadResult = awaitPayload(payload);
+            if (payloadResult == null && !decoder.hasPayload()) {
+                // the payload read may have run just before a migration wrote it
+                try {
+                    payloadResult = getSessionPayloadCollection(start).get(sessionHandle);
+                } catch (DocumentNotFoundException ignored) {
+                }
+            }
+            if (payloadResult != null) {
+                byte[] payloadContent = payloadResult.contentAsBytes();
+                decoder.readDocument(payloadContent);
+                sizeInBytes += payloadContent.length;
+            }
+        }
+        return new SessionDocument(decoder.toSessionInfo(sessionHandle), result.cas(), sizeInBytes, fromReplica);
+    }
+
+    // returns the number of sessions that were deleted, not counting ones that did not exist
+    public static int deleteSessions(Start start, String[] sessionHandles) throws StorageQueryException {
+        UserSessionIndex userIndex = UserSessionIndex.getInstance(start);
+        // the users have to be looked up while their sessions still exist, for the user session index and for the
+        // mutation tokens of the removes
+        Map<String, List<String>> byUser = userIndex.groupByUser(sessionHandles);
+        Map<String, String> userIds = new HashMap<>();
+        for (Map.Entry<String, List<String>> user : byUser.entrySet()) {
+            for (String sessionHandle : user.getValue()) {
+                userIds.put(sessionHandle, user.getKey());
+            }
+        }
+        int deleted = removeSessionDocuments(start, sessionHandles, userIds::get);
+        if (userIndex.isEnabled()) {
+            userIndex.removeAll(byUser);
+        }
+        return deleted;
+    }
+
+    // deletes the sessions of the user, and their payloads, without touching the user session index
+    static int removeSessionDocuments(Start start, String userId, String[] sessionHandles) {
+        return removeSessionDocuments(start, sessionHandles, sessionHandle -> userId);
+    }
+
+    private static int removeSessionDocuments(Start start, String[] sessionHandles, Function<String, String> userOf) {
+        SessionMutationTokens tokens = SessionMutationTokens.getInstance(start);
+        int deleted = BulkSessionDeletes.getInstance(start).remove(getSessionInfoCollection(start), sessionHandles,
+                (sessionHandle, result) -> {
+                    String userId = userOf.apply(sessionHandle);
+                    // null for a session that was created after the users were looked up
+                    if (userId != null) {
+                        tokens.add(userId, result);
+                    }
+                });
+        deleteSessionPayloads(start, sessionHandles);
+        return deleted;
+    }
+
+    public static String[] getAllNonExpiredSessionHandlesForUser(Start start, String userId) {
+        com.couchbase.client.java.json.JsonObject parameters = com.couchbase.client.java.json.JsonObject.create()
+                .put("user_id", userId).put("now", System.currentTimeMillis());
+        List<String> sessionHandles = new ArrayList<>();
+        String[] page;
+        do {
+            page = getPageOfSessionHandles(start, PreparedStatements.GET_NON_EXPIRED_SESSION_HANDLES_OF_USER,
+                    parameters);
+            sessionHandles.addAll(Arrays.asList(page));
+        } while (page.length == PreparedStatements.getInstance(start).getPageSize());
+        return sessionHandles.toArray(new String[0]);
+    }
+
+    // deletes all sessions of the user, expired or not, a page at a time, and returns whether there were any. Used
+    // when the user session index is disabled.
+    public static boolean deleteSessionsOfUser(Start start, String userId) {
+        com.couchbase.client.java.json.JsonObject parameters = com.couchbase.client.java.json.JsonObject.create()
+                .put("user_id", userId);
+        int deleted = 0;
+        String[] page;
+        do {
+            page = getPageOfSessionHandles(start, PreparedStatements.GET_SESSION_HANDLES_OF_USER, parameters);
+            deleted += removeSessionDocuments(start, userId, page);
+        } while (page.length == PreparedStatements.getInstance(start).getPageSize());
+        return deleted > 0;
+    }
+
+    // the page after the handle in parameters' "after", which is then moved to the last handle of this page
+    private static String[] getPageOfSessionHandles(Start start, String statement,
+            com.couchbase.client.java.json.JsonObject parameters) {
+        PreparedStatements statements = PreparedStatements.getInstance(start);
+        if (!parameters.containsKey("after")) {
+            parameters.put("after", "");
+        }
+        String[] page;
+        try (Stream<String> rows = statements.stream(statement, parameters.put("limit", statements.getPageSize()),
+                String.class)) {
+            page = rows.toArray(String[]::new);
+        }
+        if (page.length > 0) {
+            parameters.put("after", page[page.length - 1]);
+        }
+        return page;
+    }
+
+    // removes the payload documents of deleted sessions. Does nothing in the single document layout.
+    public static void deleteSessionPayloads(Start start, String[] sessionHandles) {
+        if (!Config.getConfig(start).isSessionPayloadSplit()) {
+            return;
+        }
+        BulkSessionDeletes.getInstance(start).remove(getSessionPayloadCollection(start), sessionHandles);
+    }
+
+    public static int getNumberOfSessions(Start start) {
+        try (Stream<Long> rows = PreparedStatements.getInstance(start).stream(PreparedStatements.COUNT_SESSIONS, null,
+                Long.class)) {
+            return rows.findFirst().orElse(0L).intValue();
+        }
+    }
+
+    // session info documents only, deleteAllSessionPayloads removes the payloads
+    public static void deleteAllSessions(Start start) {
+        PreparedStatements.getInstance(start).execute(PreparedStatements.DELETE_ALL_SESSIONS);
+    }
+
+    public static void deleteAllSessionPayloads(Start start) {
+        if (!Config.getConfig(start).isSessionPayloadSplit()) {
+            return;
+        }
+        Collection payloadCollection = getSessionPayloadCollection(start);
+        for (String prefix : SESSION_HANDLE_PREFIXES) {
+            try (Stream<String> handles = payloadCollection
+                    .scan(ScanType.prefixScan(prefix), ScanOptions.scanOptions().idsOnly(true)).map(ScanResult::id)) {
+                handles.forEach(sessionHandle -> {
+                    try {
+                        payloadCollection.remove(sessionHandle);
+                    } catch (DocumentNotFoundException ignored) {
+                    }
+                });
+            }
+        }
+    }
+
+    // streams the keys of the session info collection that start with the given prefix, without reading the documents.
+    // The returned stream must be closed.
+    public static Stream<String> scanSessionHandles(Start start, String prefix) {
+        return getSessionInfoCollection(start)
+                .scan(ScanType.prefixScan(prefix), ScanOptions.scanOptions().idsOnly(true))
+                .map(ScanResult::id);
+    }
+
+    // the session's expiry plus its remaining lifetime
+    private static long getPayloadExpiry(long expiry) {
+        return expiry + Math.max(0, expiry - System.currentTimeMillis());
+    }
+
+    // Couchbase removes session documents by itself once the session expires, so deleteAllExpiredSessions only has to
+    // catch documents that were written without an expiry. Expiry has a granularity of seconds, so we round up to never
+    // remove a session early.
+    private static Instant documentExpiry(long expiry) {
+        return Instant.ofEpochSecond(Math.floorDiv(expiry + 999, 1000));
+    }
+
+    private static LookupInResult lookupIn(Collection collection, String id, List<LookupInSpec> specs) {
+        try {
+            return collection.lookupIn(id, specs);
+        } catch (DocumentNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static int sizeOf(LookupInResult result, int numberOfSpecs) {
+        int sizeInBytes = 0;
+        for (int i = 0; i < numberOfSpecs; i++) {
+            if (result.exists(i)) {
+                sizeInBytes += result.contentAsBytes(i).length;
+            }
+        }
+        return sizeInBytes;
+    }
+
+    // returns null if the payload document does not exist
+    private static <T> T awaitPayload(CompletableFuture<T> payload) throws StorageQueryException {
+        try {
+            return payload.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DocumentNotFoundException) {
+                return null;
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new StorageQueryException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageQueryException(e);
+        }
+    }
+
+    // the reader is over the bytes in memory, so there is nothing to close
+    private static JsonElement parseJson(byte[] content) {
+        return new JsonParser().parse(SessionInfoDecoder.newReader(content));
+    }
+
+    static Collection getSessionInfoCollection(Start start) {
+        return ConnectionPool.getClientConnectedToBucket(start)
+                .collection(Config.getConfig(start).getSessionInfoCollection());
+    }
+
+    static Collection getSessionPayloadCollection(Start start) {
+        return ConnectionPool.getClientConnectedToBucket(start)
+                .collection(Config.getConfig(start).getSessionPayloadCollection());
+    }
+
+    public static class SessionDocument {
+        public final SessionInfoWithLastUpdated info;
+        public final long cas;
+        public final int sizeInBytes;
+        // true if this was read from a replica, in which case it may be stale and cas cannot be used for writes
+        public final boolean fromReplica;
+
+        public SessionDocument(SessionInfoWithLastUpdated info, long cas, int sizeInBytes, boolean fromReplica) {
+            this.info = info;
+            this.cas = cas;
+            this.sizeInBytes = sizeInBytes;
+            this.fromReplica = fromReplica;
+        }
+
+        // session_data and jwt_user_payload are mutable trees, so a document that is handed to more than one caller
+        // gives each its own copy of them
+        public SessionDocument copy() {
+            SessionInfoWithLastUpdated copy = new SessionInfoWithLastUpdated(info.sessionHandle, info.userId,
+                    info.refreshTokenHash2, Utils.deepCopy(info.userDataInDatabase), info.expiry,
+                    Utils.deepCopy(info.userDataInJWT), info.timeCreated, info.useStaticKey, info.lastUpdatedSign);
+            return new SessionDocument(copy, cas, sizeInBytes, fromReplica);
+        }
+    }
+
+}
@@ -0,0 +1,508 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.couchbase.queries;
+
+import com.couchbase.client.core.error.DocumentNotFoundException;
+import com.couchbase.client.java.AsyncCollection;
+import com.couchbase.client.java.Collection;
+import com.couchbase.client.java.kv.LookupInResult;
+import com.couchbase.client.java.kv.LookupInSpec;
+import com.couchbase.client.java.kv.MutateInOptions;
+import com.couchbase.client.java.kv.MutateInSpec;
+import com.couchbase.client.java.kv.RemoveOptions;
+import com.couchbase.client.java.kv.ScanOptions;
+import com.couchbase.client.java.kv.ScanResult;
+import com.couchbase.client.java.kv.ScanType;
+import com.couchbase.client.java.kv.StoreSemantics;
+import com.couchbase.client.java.kv.UpsertOptions;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.couchbase.BackgroundTasks;
+import io.supertokens.storage.couchbase.ConnectionPool;
+import io.supertokens.storage.couchbase.ResourceDistributor;
+import io.supertokens.storage.couchbase.Start;
+import io.supertokens.storage.couchbase.config.Config;
+import io.supertokens.storage.couchbase.config.CouchbaseConfig;
+import io.supertokens.storage.couchbase.output.Logging;
+import io.supertokens.storage.couchbase.utils.GsonTranscoder;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// One document per user that lists the handles and expiries of their sessions, so that finding a user's sessions is a
+// KV get followed by a multi-get of the sessions instead of a query on user_id. Sessions are put into the index before
+// they are written, and their expiry there is moved forward once the session's own has been, so the index can list
+// sessions that do not exist (any more) or whose expiry differs from the real one, but never miss a session. Every
+// read therefore checks all listed sessions against their documents, and skips the ones that are gone.
+//
+// Entries are added and updated with sub-document upserts, which the server applies atomically per path so that
+// concurrent writers for the same user never lose each other's entries. Removing entries rewrites the document with
+// the CAS it was read with, and removes it once it is empty, so that it never races with an upsert that recreates it.
+// A background reconciler, run by one node at a time, repairs drift in both directions. The number of sessions it
+// looks up at once follows MaintenanceThrottle.
+//
+// Sessions created before the index was enabled are only in it once the reconciler has scanned every session, which
+// it records in a marker document. Until that marker exists, listing a user's sessions falls back to the query on
+// user_id, and deleting them also deletes what that query finds. Nodes running with the index disabled create sessions
+// that are not indexed, so while the marker exists they write a heartbeat document every minute, and the index is only
+// relied on if its last reconciliation started after the last heartbeat could have been missed. Once every node has
+// the index enabled, the next reconciliation makes it relied on again, without any node having to remove the marker.
+//
+// User ids are not bounded in length, so the index document of a user whose id would make its key longer than a
+// Couchbase key can be is keyed by a hash of the id instead. Every index document also holds the user id itself.
+public class UserSessionIndex extends ResourceDistributor.SingletonResource {
+
+    private static final String RESOURCE_KEY = "io.supertokens.storage.couchbase.queries.UserSessionIndex";
+
+    /*
+     * Schema, in the key value collection (the key is getKey(user id))
+     * {
+     * user_id: string,
+     * sessions: { <session handle>: long, (expires_at of the session) }
+     * }
+     *
+     * the marker, written once a reconciliation has scanned every session (the key is RECONCILED_KEY)
+     * {
+     * reconciled_at: long, (when that reconciliation started)
+     * }
+     *
+     * and the heartbeat of the nodes that run with the index disabled (the key is UNINDEXED_WRITER_KEY)
+     * {
+     * seen_at: long,
+     * }
+     */
+    static final String SESSIONS = "sessions";
+    static final String USER_ID = "user_id";
+    private static final String KEY_PREFIX = "user_sessions_";
+    private static final String HASHED_KEY_PREFIX = KEY_PREFIX + "sha256_";
+    private static final int MAX_KEY_LENGTH_IN_BYTES = 250;
+    // the most paths a single sub-document mutation can change
+    private static final int MAX_SPECS_PER_MUTATION = 16;
+    private static final int RECONCILE_BATCH_SIZE = 500;
+    private static final String LEASE_NAME = "user_session_index_reconcile";
+    // not under KEY_PREFIX, so that the reconciler does not take it for a user's index document
+    private static final String RECONCILED_KEY = "user_session_index_reconciled";
+    private static final String RECONCILED_AT = "reconciled_at";
+    private static final String UNINDEXED_WRITER_KEY = "user_session_index_unindexed_writer";
+    private static final String SEEN_AT = "seen_at";
+    // how often nodes with the index disabled write their heartbeat, and nodes with it enabled check the marker again
+    private static final long HEARTBEAT_INTERVAL = 60 * 1000;
+
+    private static final List<LookupInSpec> EXPIRES_AT_LOOKUP_SPECS = Collections.singletonList(
+            LookupInSpec.get(SessionQueries.EXPIRES_AT));
+    private static final List<LookupInSpec> USER_ID_LOOKUP_SPECS = Collections.singletonList(
+            LookupInSpec.get(SessionQueries.USER_ID));
+    private static final List<LookupInSpec> RECONCILE_LOOKUP_SPECS = Arrays.asList(
+            LookupInSpec.get(SessionQueries.USER_ID), LookupInSpec.get(SessionQueries.EXPIRES_AT));
+
+    private final Start start;
+    private final boolean enabled;
+    private final long reconcileInterval;
+    private final MaintenanceThrottle throttle;
+
+    private final Object lock = new Object();
+    private BackgroundTasks scheduledOn = null;
+    private volatile boolean reconciled = false;
+    private volatile long reconciledCheckedAt = 0;
+
+    private final AtomicLong reconcileAdded = new AtomicLong();
+    private final AtomicLong reconcileRemoved = new AtomicLong();
+    private volatile long lastReconcileDuration = -1;
+
+    private UserSessionIndex(Start start, CouchbaseConfig config) {
+        this.start = start;
+        this.enabled = config.isSessionUserIndexEnabled();
+        this.reconcileInterval = config.getSessionUserIndexReconcileInterval();
+        this.throttle = MaintenanceThrottle.getInstance(start);
+    }
+
+    public static UserSessionIndex getInstance(Start start) {
+        ResourceDistributor.SingletonResource instance = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (instance == null) {
+            instance = start.getResourceDistributor().setResource(RESOURCE_KEY,
+                    new UserSessionIndex(start, Config.getConfig(start)));
+        }
+        return (UserSessionIndex) instance;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void startReconciling() {
+        BackgroundTasks tasks = BackgroundTasks.getInstance(start);
+        synchronized (lock) {
+            if (scheduledOn == tasks) {
+                return;
+            }
+            scheduledOn = tasks;
+        }
+        if (!enabled) {
+            tasks.scheduleWithFixedDelay(start, "user session index unindexed writer heartbeat", this::heartbeat, 0,
+                    HEARTBEAT_INTERVAL);
+            return;
+        }
+        tasks.scheduleWithFixedDelay(start, "user session index reconciliation", this::reconcile, 0,
+                reconcileInterval);
+    }
+
+    // only needed while some node relies on the index, which it can only do once the marker exists
+    private void heartbeat() {
+        Collection collection = getCollection(start);
+        if (!collection.exists(RECONCILED_KEY).exists()) {
+            return;
+        }
+        JsonObject heartbeat = new JsonObject();
+        heartbeat.addProperty(SEEN_AT, System.currentTimeMillis());
+        collection.upsert(UNINDEXED_WRITER_KEY, heartbeat,
+                UpsertOptions.upsertOptions().transcoder(GsonTranscoder.INSTANCE));
+    }
+
+    // user ids that would make the key too long are hashed. The reconciler finds the user id in the document.
+    public static String getKey(String userId) {
+        String key = KEY_PREFIX + userId;
+        if (key.getBytes(StandardCharsets.UTF_8).length <= MAX_KEY_LENGTH_IN_BYTES) {
+            return key;
+        }
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(userId.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(HASHED_KEY_PREFIX);
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // must be called before a new session is written, and after a refreshed one has been. A crash after a refresh was
+    // written and before this leaves the session's old expiry in the index, which is harmless since reads check the
+    // session documents' own expiry.
+    void put(String userId, String sessionHandle, long expiry) {
+        if (!enabled) {
+            return;
+        }
+        putAll(userId, Collections.singletonMap(sessionHandle, expiry));
+    }
+
+    private void putAll(String userId, Map<String, Long> sessions) {
+        Collection collection = getCollection(start);
+        List<MutateInSpec> specs = new ArrayList<>();
+        specs.add(MutateInSpec.upsert(USER_ID, userId));
+        Iterator<Map.Entry<String, Long>> it = sessions.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> session = it.next();
+            specs.add(MutateInSpec.upsert(SESSIONS + ".`" + session.getKey() + "`", session.getValue()).createPath());
+            if (specs.size() == MAX_SPECS_PER_MUTATION || !it.hasNext()) {
+                collection.mutateIn(getKey(userId), specs,
+                        MutateInOptions.mutateInOptions().storeSemantics(StoreSemantics.UPSERT));
+                specs = new ArrayList<>();
+            }
+        }
+    }
+
+    void removeAll(Map<String, List<String>> sessionHandlesByUser) throws StorageQueryException {
+        for (Map.Entry<String, List<String>> user : sessionHandlesByUser.entrySet()) {
+            removeAll(user.getKey(), user.getValue());
+        }
+    }
+
+    void removeAll(String userId, List<String> sessionHandles) throws StorageQueryException {
+        if (!enabled || sessionHandles.isEmpty()) {
+            return;
+        }
+        Collection collection = getCollection(start);
+        CasEngine.getInstance(start).run("removeFromUserSessionIndex", () -> {
+            CasEngine.Versioned current = CasEngine.read(collection, getKey(userId));
+            if (current == null) {
+                return null;
+            }
+            JsonObject sessions = current.content.getAsJsonObject(SESSIONS);
+            boolean changed = false;
+            for (String sessionHandle : sessionHandles) {
+                changed |= sessions.remove(sessionHandle) != null;
+            }
+            if (!changed) {
+                return null;
+            }
+            if (sessions.entrySet().isEmpty()) {
+                collection.remove(getKey(userId), RemoveOptions.removeOptions().cas(current.cas));
+            } else {
+                CasEngine.replace(collection, getKey(userId), current.content, current.cas);
+            }
+            return null;
+        });
+    }
+
+    // the user's sessions that have not expired, according to their session documents. Entries of sessions that are
+    // gone are left for the reconciler, so that listing never writes.
+    public String[] getNonExpiredSessionHandles(String userId) throws StorageQueryException {
+        if (!isReconciled()) {
+            return SessionQueries.getAllNonExpiredSessionHandlesForUser(start, userId);
+        }
+        Map<String, Long> indexed = getIndexedSessions(userId);
+        long now = System.currentTimeMillis();
+        // the expiries in the index are not used to skip sessions, since a refresh updates them after the session's
+        List<String> candidates = new ArrayList<>(indexed.keySet());
+
+        Map<String, LookupInResult> found = lookupAll(candidates, EXPIRES_AT_LOOKUP_SPECS);
+        List<String> nonExpired = new ArrayList<>();
+        for (String sessionHandle : candidates) {
+            LookupInResult result = found.get(sessionHandle);
+            if (result != null && result.exists(0) && result.contentAs(0, Long.class) >= now) {
+                nonExpired.add(sessionHandle);
+            }
+        }
+        return nonExpired.toArray(new String[0]);
+    }
+
+    // returns true if at least one session was deleted. Sessions that are created while this runs make the final
+    // remove of the index document fail its CAS, in which case the new ones are deleted as well. Until the index has
+    // been reconciled, the sessions found by the query on user_id are deleted too.
+    public boolean deleteSessionsOfUser(String userId) throws StorageQueryException {
+        boolean deleted = deleteIndexedSessionsOfUser(userId);
+        if (!isReconciled()) {
+            deleted |= SessionQueries.deleteSessionsOfUser(start, userId);
+        }
+        return deleted;
+    }
+
+    private boolean deleteIndexedSessionsOfUser(String userId) throws StorageQueryException {
+        Collection collection = getCollection(start);
+        AtomicInteger deleted = new AtomicInteger();
+        CasEngine.getInstance(start).run("deleteSessionsOfUser", () -> {
+            CasEngine.Versioned current = CasEngine.read(collection, getKey(userId));
+            if (current == null) {
+                return null;
+            }
+            String[] sessionHandles = current.content.getAsJsonObject(SESSIONS).entrySet().stream()
+                    .map(Map.Entry::getKey).toArray(String[]::new);
+            deleted.addAndGet(SessionQueries.removeSessionDocuments(start, userId, sessionHandles));
+            try {
+                collection.remove(getKey(userId), RemoveOptions.removeOptions().cas(current.cas));
+            } catch (DocumentNotFoundException ignored) {
+            }
+            return null;
+        });
+        return deleted.get() > 0;
+    }
+
+    // the sessions that exist, grouped by their user. Has to be called before the sessions are removed.
+    Map<String, List<String>> groupByUser(String[] sessionHandles) throws StorageQueryException {
+        Map<String, LookupInResult> found = lookupAll(Arrays.asList(sessionHandles), USER_ID_LOOKUP_SPECS);
+        Map<String, List<String>> byUser = new HashMap<>();
+        for (Map.Entry<String, LookupInResult> session : found.entrySet()) {
+            if (session.getValue().exists(0)) {
+                byUser.computeIfAbsent(session.getValue().contentAs(0, String.class), userId -> new ArrayList<>())
+                        .add(session.getKey());
+            }
+        }
+        return byUser;
+    }
+
+    // whether a reconciliation has finished since the index was enabled on all nodes. Looked up again every heartbeat
+    // interval, so that a node that starts with the index disabled is noticed.
+    private boolean isReconciled() {
+        long now = System.currentTimeMillis();
+        if (now - reconciledCheckedAt >= HEARTBEAT_INTERVAL) {
+            reconciled = readReconciled();
+            reconciledCheckedAt = now;
+        }
+        return reconciled;
+    }
+
+    // a node with the index disabled may have created sessions up to a heartbeat interval after its last heartbeat
+    private boolean readReconciled() {
+        CasEngine.Versioned marker = CasEngine.read(getCollection(start), RECONCILED_KEY);
+        if (marker == null) {
+            return false;
+        }
+        CasEngine.Versioned writer = CasEngine.read(getCollection(start), UNINDEXED_WRITER_KEY);
+        return writer == null || marker.content.get(RECONCILED_AT).getAsLong()
+                > writer.content.get(SEEN_AT).getAsLong() + HEARTBEAT_INTERVAL;
+    }
+
+    private Map<String, Long> getIndexedSessions(String userId) {
+        return getIndexedSessions(CasEngine.read(getCollection(start), getKey(userId)));
+    }
+
+    private static Map<String, Long> getIndexedSessions(CasEngine.Versioned current) {
+        Map<String, Long> sessions = new LinkedHashMap<>();
+        if (current != null) {
+            for (Map.Entry<String, JsonElement> session : current.content.getAsJsonObject(SESSIONS).entrySet()) {
+                sessions.put(session.getKey(), session.getValue().getAsLong());
+            }
+        }
+        return sessions;
+    }
+
+    // looks up the given paths of all the sessions at once. Sessions that do not exist are left out of the result.
+    private Map<String, LookupInResult> lookupAll(List<String> sessionHandles, List<LookupInSpec> specs)
+            throws StorageQueryException {
+        AsyncCollection sessions = SessionQueries.getSessionInfoCollection(start).async();
+        List<CompletableFuture<LookupInResult>> lookups = new ArrayList<>(sessionHandles.size());
+        for (String sessionHandle : sessionHandles) {
+            lookups.add(sessions.lookupIn(sessionHandle, specs));
+        }
+        Map<String, LookupInResult> found = new HashMap<>();
+        for (int i = 0; i < sessionHandles.size(); i++) {
+            try {
+                found.put(sessionHandles.get(i), lookups.get(i).join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof DocumentNotFoundException) {
+                    continue;
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new StorageQueryException(e);
+            }
+        }
+        return found;
+    }
+
+    public void reconcile() {
+        try {
+            ConnectionPool.getLease(start, LEASE_NAME).runIfAcquired(() -> {
+                doReconcile();
+                return true;
+            });
+        } catch (StorageQueryException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void doReconcile() throws StorageQueryException {
+        long startTime = System.currentTimeMillis();
+        long addedBefore = reconcileAdded.get();
+        long removedBefore = reconcileRemoved.get();
+
+        // entries of sessions that are gone. A session that is being created right now can be among them, since it
+        // is indexed before it is written, and is put back by the scan below.
+        try (Stream<String> keys = getCollection(start)
+                .scan(ScanType.prefixScan(KEY_PREFIX), ScanOptions.scanOptions().idsOnly(true))
+                .map(ScanResult::id)) {
+            Iterator<String> it = keys.iterator();
+            while (it.hasNext() && start.isStorageLayerEnabled()) {
+                String key = it.next();
+                CasEngine.Versioned current = CasEngine.read(getCollection(start), key);
+                if (current == null) {
+                    continue;
+                }
+                // documents written before user_id was added to them are never keyed by a hash
+                String userId = current.content.has(USER_ID) ? current.content.get(USER_ID).getAsString()
+                        : key.substring(KEY_PREFIX.length());
+                List<String> indexed = new ArrayList<>(getIndexedSessions(current).keySet());
+                List<String> gone = new ArrayList<>(indexed);
+                for (int i = 0; i < indexed.size(); ) {
+                    int end = Math.min(i + throttle.getBatchSize(RECONCILE_BATCH_SIZE), indexed.size());
+                    gone.removeAll(lookupAll(indexed.subList(i, end), EXPIRES_AT_LOOKUP_SPECS).keySet());
+                    i = end;
+                }
+                removeAll(userId, gone);
+                reconcileRemoved.addAndGet(gone.size());
+            }
+        }
+
+        // sessions that are missing from the index of their user, for example because they were created before the
+        // index was enabled. Like the sweep, this only covers sessions whose handle was generated by the core.
+        for (String prefix : SessionQueries.SESSION_HANDLE_PREFIXES) {
+            try (Stream<String> handles = SessionQueries.scanSessionHandles(start, prefix)) {
+                Iterator<String> it = handles.iterator();
+                List<String> batch = new ArrayList<>(RECONCILE_BATCH_SIZE);
+                int currentBatchSize = throttle.getBatchSize(RECONCILE_BATCH_SIZE);
+                while (it.hasNext()) {
+                    batch.add(it.next());
+                    if (batch.size() >= currentBatchSize || !it.hasNext()) {
+                        if (!start.isStorageLayerEnabled()) {
+                            return;
+                        }
+                        addMissing(batch);
+                        batch.clear();
+                        currentBatchSize = throttle.getBatchSize(RECONCILE_BATCH_SIZE);
+                    }
+                }
+            }
+        }
+
+        JsonObject marker = new JsonObject();
+        marker.addProperty(RECONCILED_AT, startTime);
+        getCollection(start).upsert(RECONCILED_KEY, marker,
+                UpsertOptions.upsertOptions().transcoder(GsonTranscoder.INSTANCE));
+        // a node with the index disabled that is still running keeps the index from being relied on
+        reconciled = readReconciled();
+        reconciledCheckedAt = System.currentTimeMillis();
+
+        lastReconcileDuration = System.currentTimeMillis() - startTime;
+        Logging.debug(start, "Reconciled the user session index in " + lastReconcileDuration + "ms, added "
+                + (reconcileAdded.get() - addedBefore) + " and removed " + (reconcileRemoved.get() - removedBefore)
+                + " entries");
+    }
+
+    private void addMissing(List<String> sessionHandles) throws StorageQueryException {
+        Map<String, Map<String, Long>> byUser = new HashMap<>();
+        for (Map.Entry<String, LookupInResult> session : lookupAll(sessionHandles, RECONCILE_LOOKUP_SPECS)
+                .entrySet()) {
+            LookupInResult result = session.getValue();
+            if (result.exists(0) && result.exists(1)) {
+                byUser.computeIfAbsent(result.contentAs(0, String.class), userId -> new HashMap<>())
+                        .put(session.getKey(), result.contentAs(1, Long.class));
+            }
+        }
+        for (Map.Entry<String, Map<String, Long>> user : byUser.entrySet()) {
+            Map<String, Long> missing = new HashMap<>(user.getValue());
+            missing.keySet().removeAll(getIndexedSessions(user.getKey()).keySet());
+            if (!missing.isEmpty()) {
+                putAll(user.getKey(), missing);
+                reconcileAdded.addAndGet(missing.size());
+            }
+        }
+    }
+
+    private static Collection getCollection(Start start) {
+        return KeyValueQueries.getKeyValueCollection(start);
+    }
+
+    public long getReconcileAddedCount() {
+        return reconcileAdded.get();
+    }
+
+    public long getReconcileRemovedCount() {
+        return reconcileRemoved.get();
+    }
+
+    public long getLastReconcileDuration() {
+        return lastReconcileDuration;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.couchbase.utils;
+
+import com.couchbase.client.core.error.DecodingFailureException;
+import com.couchbase.client.core.error.EncodingFailureException;
+import com.couchbase.client.core.msg.kv.CodecFlags;
+import com.couchbase.client.java.codec.JsonSerializer;
+import com.couchbase.client.java.codec.Transcoder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+// Transcoder that writes Gson trees straight into the document bytes, so that documents built from the Gson objects
+// the core gives us do not need to go through a String and a Couchbase JsonObject first. The bytes are written into a
+// per thread buffer that is reused across calls, and copied out once at the end since the SDK keeps the array. It also
+// serves as the JsonSerializer for sub-document specs, whose values are Gson trees too.
+public class GsonTranscoder implements Transcoder, JsonSerializer {
+
+    public static final GsonTranscoder INSTANCE = new GsonTranscoder();
+
+    // buffers that grew larger than this are not kept around, so that one huge document does not pin memory forever
+    private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+
+    private static final ThreadLocal<EncodeBuffer> BUFFER = ThreadLocal.withInitial(EncodeBuffer::new);
+
+    private GsonTranscoder() {
+    }
+
+    @Override
+    public EncodedValue encode(Object input) {
+        if (!(input instanceof JsonElement)) {
+            throw new EncodingFailureException(
+                    "GsonTranscoder can only encode Gson trees, got " + (input == null ? null : input.getClass()));
+        }
+        EncodeBuffer buffer = BUFFER.get();
+        boolean reusable = false;
+        try {
+            buffer.bytes.reset();
+            JsonWriter jsonWriter = new JsonWriter(buffer.writer);
+            jsonWriter.setLenient(true);
+            write((JsonElement) input, jsonWriter);
+            jsonWriter.flush();
+            byte[] encoded = buffer.bytes.toByteArray();
+            reusable = buffer.bytes.capacity() <= MAX_RETAINED_BUFFER_SIZE;
+            return new EncodedValue(encoded, CodecFlags.JSON_COMPAT_FLAGS);
+        } catch (IOException e) {
+            throw new EncodingFailureException(e);
+        } finally {
+            // after a failure the writer may still hold half a document, so we never reuse it in that case
+            if (!reusable) {
+                BUFFER.remove();
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T decode(Class<T> target, byte[] input, int flags) {
+        if (target == byte[].class) {
+            return (T) input;
+        }
+        if (target == JsonObject.class || target == JsonElement.class) {
+            try {
+                JsonElement parsed = new JsonParser().parse(
+                        new InputStreamReader(new ByteArrayInputStream(input), StandardCharsets.UTF_8));
+                return (T) (target == JsonObject.class ? parsed.getAsJsonObject() : parsed);
+            } catch (RuntimeException e) {
+                throw new DecodingFailureException(e);
+            }
+        }
+        throw new DecodingFailureException("GsonTranscoder cannot decode into " + target);
+    }
+
+    @Override
+    public byte[] serialize(Object input) {
+        return encode(input).encoded();
+    }
+
+    @Override
+    public <T> T deserialize(Class<T> target, byte[] input) {
+        return decode(target, input, CodecFlags.JSON_COMPAT_FLAGS);
+    }
+
+    // same output as JsonElement.toString(), but streamed into the writer
+    private static void write(JsonElement element, JsonWriter out) throws IOException {
+        if (element == null || element.isJsonNull()) {
+            out.nullValue();
+        } else if (element.isJsonPrimitive()) {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isNumber()) {
+                out.value(primitive.getAsNumber());
+            } else if (primitive.isBoolean()) {
+                out.value(primitive.getAsBoolean());
+            } else {
+                out.value(primitive.getAsString());
+            }
+        } else if (element.isJsonArray()) {
+            out.beginArray();
+            for (JsonElement e : (JsonArray) element) {
+                write(e, out);
+            }
+            out.endArray();
+        } else {
+            out.beginObject();
+            for (Map.Entry<String, JsonElement> e : ((JsonObject) element).entrySet()) {
+                out.name(e.getKey());
+                write(e.getValue(), out);
+            }
+            out.endObject();
+        }
+    }
+
+    private static class EncodeBuffer {
+        final ReusableByteArrayOutputStream bytes = new ReusableByteArrayOutputStream();
+        final Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+        ReusableByteArrayOutputStream() {
+            super(1024);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.couchbase.utils;
+
+import java.util.Arrays;
+
+// Keeps the last SAMPLE_SIZE latencies in a ring buffer. Percentiles are computed from a sorted copy of the buffer,
+// which is only refreshed every RECOMPUTE_EVERY samples so that reading a percentile on a hot path stays cheap.
+public class LatencyHistogram {
+
+    private static final int SAMPLE_SIZE = 1024;
+    private static final int RECOMPUTE_EVERY = 64;
+
+    private final long[] samples = new long[SAMPLE_SIZE];
+    private int next = 0;
+    private int count = 0;
+    private int recordedSinceSort = 0;
+    private long[] sorted = new long[0];
+
+    public synchronized void record(long latencyMillis) {
+        samples[next] = latencyMillis;
+        next = (next + 1) % SAMPLE_SIZE;
+        count = Math.min(count + 1, SAMPLE_SIZE);
+        recordedSinceSort++;
+    }
+
+    public synchronized int getSampleCount() {
+        return count;
+    }
+
+    // returns -1 if nothing has been recorded yet
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return -1;
+        }
+        if (sorted.length != count || recordedSinceSort >= RECOMPUTE_EVERY) {
+            sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            recordedSinceSort = 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ */
+
+package io.supertokens.storage.couchbase.utils;
+
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+// Makes concurrent loads of the same key share a single call to the loader. Only calls that overlap in time are
+// folded together, nothing is remembered once the load has finished.
+// If the loaded value is mutable, a copier can be given, and then every caller, the one that ran the loader included,
+// gets its own copy of it while the loaded value itself is never handed out.
+public class SingleFlight<K, V> {
+
+    private final UnaryOperator<V> copier;
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong folded = new AtomicLong();
+
+    public SingleFlight() {
+        this(UnaryOperator.identity());
+    }
+
+    // the copier is not called for null values
+    public SingleFlight(UnaryOperator<V> copier) {
+        this.copier = copier;
+    }
+
+    public V load(K key, Loader<V> loader) throws StorageQueryException {
+        calls.incrementAndGet();
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            folded.incrementAndGet();
+            return copy(await(existing));
+        }
+
+        try {
+            V value = loader.load();
+            mine.complete(value);
+            return copy(value);
+        } catch (Throwable e) {
+            // errors as well, since the callers waiting on mine would otherwise wait forever
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    public long getCallCount() {
+        return calls.get();
+    }
+
+    public long getFoldedCount() {
+        return folded.get();
+    }
+
+    private V copy(V value) {
+        return value == null ? null : copier.apply(value);
+    }
+
+    private static <V> V await(CompletableFuture<V> future) throws StorageQueryException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof StorageQueryException) {
+                throw (StorageQueryException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new StorageQueryException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageQueryException(e);
+        }
+    }
+
+    public interface Loader<V> {
+        V load() throws StorageQueryException;
+    }
+}
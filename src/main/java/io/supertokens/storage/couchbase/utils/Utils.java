@@ -17,8 +17,13 @@
 
 package io.supertokens.storage.couchbase.utils;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.util.Map;
 import java.util.UUID;
 
 public class Utils {
@@ -33,4 +38,25 @@ public class Utils {
     public static String getUUID() {
         return UUID.randomUUID().toString();
     }
+
+    // JsonElement.deepCopy is not public in the Gson version the core ships with. Primitives and null are immutable,
+    // so they are shared.
+    @SuppressWarnings("unchecked")
+    public static <T extends JsonElement> T deepCopy(T element) {
+        if (element instanceof JsonObject) {
+            JsonObject copy = new JsonObject();
+            for (Map.Entry<String, JsonElement> entry : ((JsonObject) element).entrySet()) {
+                copy.add(entry.getKey(), deepCopy(entry.getValue()));
+            }
+            return (T) copy;
+        }
+        if (element instanceof JsonArray) {
+            JsonArray copy = new JsonArray();
+            for (JsonElement item : (JsonArray) element) {
+                copy.add(deepCopy(item));
+            }
+            return (T) copy;
+        }
+        return element;
+    }
 }
@@ -0,0 +1,182 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.couchbase.test;
+
+import com.couchbase.client.core.error.CouchbaseException;
+import com.google.gson.JsonObject;
+import io.supertokens.pluginInterface.KeyValueInfo;
+import io.supertokens.storage.couchbase.Start;
+import io.supertokens.storage.couchbase.cache.AccessTokenSigningKeyCache;
+import io.supertokens.storage.couchbase.config.Config;
+import io.supertokens.storage.couchbase.queries.KeyValueQueries;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class AccessTokenSigningKeyCacheTest {
+
+    @Test
+    public void testThatReadsAreServedFromTheCopyUntilTheNextRotationIsDue() throws Exception {
+        long now = System.currentTimeMillis();
+        FakeSource source = new FakeSource(list(1, key("a", now), key("b", now - 3600000)));
+        AccessTokenSigningKeyCache cache = createCache(source);
+
+        assertEquals("a", cache.get()[0].value);
+        source.list = list(2, key("c", now), key("a", now));
+        assertEquals("a", cache.get()[0].value);
+        assertEquals(1, cache.getLoadCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(0, cache.getRevalidationCount());
+
+        // after this node changed the list
+        cache.refresh();
+        assertEquals("c", cache.get()[0].value);
+        assertEquals(2, cache.getLoadCount());
+    }
+
+    @Test
+    public void testThatADueRotationIsRevalidatedByCas() throws Exception {
+        long now = System.currentTimeMillis();
+        // the next rotation of both lists is expected in 300ms
+        FakeSource unchanged = new FakeSource(list(1, key("a", now - 700), key("b", now - 1700)));
+        FakeSource rotated = new FakeSource(list(1, key("a", now - 700), key("b", now - 1700)));
+        AccessTokenSigningKeyCache unchangedCache = createCache(unchanged);
+        AccessTokenSigningKeyCache rotatedCache = createCache(rotated);
+        unchangedCache.get();
+        rotatedCache.get();
+        rotated.list = list(2, key("c", now), key("a", now - 700));
+        Thread.sleep(400);
+
+        // the copy is kept, and counts as validated after the rotation was due
+        assertEquals("a", unchangedCache.get()[0].value);
+        unchangedCache.get();
+        assertEquals(1, unchangedCache.getRevalidationCount());
+        assertEquals(1, unchangedCache.getLoadCount());
+
+        assertEquals("c", rotatedCache.get()[0].value);
+        assertEquals(1, rotatedCache.getRevalidationCount());
+        assertEquals(2, rotatedCache.getLoadCount());
+    }
+
+    @Test
+    public void testThatTheLastGoodListIsServedWhileTheClusterIsUnreachable() throws Exception {
+        long now = System.currentTimeMillis();
+        FakeSource source = new FakeSource(list(1, key("a", now - 700), key("b", now - 1700)));
+        AccessTokenSigningKeyCache cache = createCache(source);
+        cache.get();
+        Thread.sleep(400);
+
+        source.failure = new CouchbaseException("unreachable");
+        assertEquals("a", cache.get()[0].value);
+        assertEquals(1, cache.getStaleReadCount());
+        assertEquals(1, cache.getFailedRevalidationCount());
+    }
+
+    @Test
+    public void testThatALoadThatStartedBeforeARefreshIsNotKept() throws Exception {
+        long now = System.currentTimeMillis();
+        KeyValueQueries.VersionedArrayKeyValue before = list(1, key("a", now), key("b", now - 3600000));
+        KeyValueQueries.VersionedArrayKeyValue after = list(2, key("c", now), key("a", now));
+        CountDownLatch readStarted = new CountDownLatch(1);
+        CountDownLatch releaseRead = new CountDownLatch(1);
+        AtomicInteger reads = new AtomicInteger();
+        AccessTokenSigningKeyCache cache = createCache(new AccessTokenSigningKeyCache.Source() {
+            @Override
+            public KeyValueQueries.VersionedArrayKeyValue read(String key) {
+                switch (reads.incrementAndGet()) {
+                case 1:
+                    // a load that read the list before this node changed it, and is slow to finish
+                    readStarted.countDown();
+                    try {
+                        releaseRead.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return before;
+                case 2:
+                    // the reload of the refresh fails, which leaves no copy
+                    throw new CouchbaseException("unreachable");
+                default:
+                    return after;
+                }
+            }
+
+            @Override
+            public long getCas(String key) {
+                return after.cas;
+            }
+        });
+
+        CompletableFuture<KeyValueInfo[]> slowRead = CompletableFuture.supplyAsync(cache::get);
+        readStarted.await();
+        cache.refresh();
+        releaseRead.countDown();
+        assertEquals("a", slowRead.get(5, TimeUnit.SECONDS)[0].value);
+
+        assertEquals("c", cache.get()[0].value);
+        assertEquals(3, reads.get());
+    }
+
+    private static AccessTokenSigningKeyCache createCache(AccessTokenSigningKeyCache.Source source)
+            throws Exception {
+        JsonObject config = new JsonObject();
+        config.addProperty("couchbase_access_token_signing_key_cache_enabled", true);
+        Start start = Utils.getStartWithConfig(config);
+        return new AccessTokenSigningKeyCache(start, "access_token_signing_key_list", Config.getConfig(start),
+                source);
+    }
+
+    private static KeyValueQueries.VersionedArrayKeyValue list(long cas, KeyValueInfo... keys) {
+        return new KeyValueQueries.VersionedArrayKeyValue(Arrays.asList(keys), cas);
+    }
+
+    private static KeyValueInfo key(String value, long createdAtTime) {
+        return new KeyValueInfo(value, createdAtTime);
+    }
+
+    private static class FakeSource implements AccessTokenSigningKeyCache.Source {
+        volatile KeyValueQueries.VersionedArrayKeyValue list;
+        volatile CouchbaseException failure = null;
+
+        FakeSource(KeyValueQueries.VersionedArrayKeyValue list) {
+            this.list = list;
+        }
+
+        @Override
+        public KeyValueQueries.VersionedArrayKeyValue read(String key) {
+            if (failure != null) {
+                throw failure;
+            }
+            return list;
+        }
+
+        @Override
+        public long getCas(String key) {
+            if (failure != null) {
+                throw failure;
+            }
+            return list.cas;
+        }
+    }
+}
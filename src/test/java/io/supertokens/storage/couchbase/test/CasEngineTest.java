@@ -0,0 +1,91 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.couchbase.test;
+
+import com.couchbase.client.core.error.CasMismatchException;
+import com.couchbase.client.core.error.CouchbaseException;
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.couchbase.Start;
+import io.supertokens.storage.couchbase.queries.CasEngine;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CasEngineTest {
+
+    @Test
+    public void testThatConflictsAreRetriedAndCounted() throws Exception {
+        CasEngine engine = CasEngine.getInstance(new Start());
+        AtomicInteger calls = new AtomicInteger();
+
+        boolean result = engine.run("op", () -> {
+            if (calls.incrementAndGet() < 3) {
+                throw new CasMismatchException(null);
+            }
+            return true;
+        });
+
+        assertTrue(result);
+        assertEquals(3, calls.get());
+        assertEquals(3, engine.getMetrics("op").getAttempts());
+        assertEquals(2, engine.getMetrics("op").getConflicts());
+        assertEquals(0, engine.getMetrics("op").getGiveUps());
+    }
+
+    @Test
+    public void testThatEngineGivesUpWhenConflictsPersist() {
+        CasEngine engine = CasEngine.getInstance(new Start());
+        AtomicInteger calls = new AtomicInteger();
+
+        try {
+            engine.run("op", () -> {
+                calls.incrementAndGet();
+                throw new CasMismatchException(null);
+            });
+            fail();
+        } catch (StorageQueryException e) {
+            assertTrue(e.getCause() instanceof CasMismatchException);
+        }
+
+        assertEquals(calls.get(), engine.getMetrics("op").getConflicts());
+        assertEquals(1, engine.getMetrics("op").getGiveUps());
+    }
+
+    @Test
+    public void testThatOtherFailuresAreNotRetried() throws Exception {
+        CasEngine engine = CasEngine.getInstance(new Start());
+        AtomicInteger calls = new AtomicInteger();
+
+        try {
+            engine.run("op", () -> {
+                calls.incrementAndGet();
+                throw new CouchbaseException("timeout");
+            });
+            fail();
+        } catch (CouchbaseException ignored) {
+        }
+
+        assertEquals(1, calls.get());
+        assertEquals(0, engine.getMetrics("op").getConflicts());
+        assertEquals(1, engine.getMetrics("op").getFailures());
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.couchbase.test;
+
+import com.couchbase.client.java.codec.DefaultJsonSerializer;
+import com.couchbase.client.java.codec.JsonSerializer;
+import com.google.gson.JsonObject;
+import io.supertokens.storage.couchbase.utils.GsonTranscoder;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+// Compares the old write path (Gson -> String -> Couchbase JsonObject -> bytes) with the transcoder. Not part of the
+// test task, since timings on shared CI machines are too noisy to fail a build on. Run it with ./gradlew benchmark,
+// which prints the numbers.
+public class GsonTranscoderBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 20_000;
+    private static final int BENCHMARK_ITERATIONS = 100_000;
+
+    @Test
+    public void benchmarkAgainstStringRoundTrip() {
+        JsonObject document = GsonTranscoderTest.createSessionDocument();
+        JsonSerializer serializer = DefaultJsonSerializer.create();
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            serializer.serialize(com.couchbase.client.java.json.JsonObject.fromJson(document.toString()));
+            GsonTranscoder.INSTANCE.encode(document);
+        }
+
+        long allocatedBefore = allocatedBytes();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            serializer.serialize(com.couchbase.client.java.json.JsonObject.fromJson(document.toString()));
+        }
+        long roundTripNanos = System.nanoTime() - startTime;
+        long roundTripBytes = allocatedBytes() - allocatedBefore;
+
+        allocatedBefore = allocatedBytes();
+        startTime = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            GsonTranscoder.INSTANCE.encode(document);
+        }
+        long transcoderNanos = System.nanoTime() - startTime;
+        long transcoderBytes = allocatedBytes() - allocatedBefore;
+
+        System.out.println("String round trip: " + (roundTripNanos / BENCHMARK_ITERATIONS) + " ns/op, "
+                + (roundTripBytes / BENCHMARK_ITERATIONS) + " bytes allocated/op");
+        System.out.println("GsonTranscoder:    " + (transcoderNanos / BENCHMARK_ITERATIONS) + " ns/op, "
+                + (transcoderBytes / BENCHMARK_ITERATIONS) + " bytes allocated/op");
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
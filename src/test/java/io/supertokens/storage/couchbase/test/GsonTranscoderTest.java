@@ -0,0 +1,91 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.couchbase.test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import io.supertokens.storage.couchbase.utils.GsonTranscoder;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class GsonTranscoderTest {
+
+    @Test
+    public void testThatEncodedBytesMatchGsonOutput() {
+        JsonObject document = createSessionDocument();
+        byte[] encoded = GsonTranscoder.INSTANCE.encode(document).encoded();
+
+        assertEquals(document.toString(), new String(encoded, StandardCharsets.UTF_8));
+        assertEquals(document, new JsonParser().parse(new String(encoded, StandardCharsets.UTF_8)));
+        assertEquals(document, GsonTranscoder.INSTANCE.decode(JsonObject.class, encoded, 0));
+    }
+
+    @Test
+    public void testThatSubDocumentValuesAreSerializedAsJson() {
+        JsonObject document = createSessionDocument();
+        JsonObject sessionData = document.getAsJsonObject("session_data");
+
+        byte[] serialized = GsonTranscoder.INSTANCE.serialize(sessionData);
+        assertEquals(sessionData.toString(), new String(serialized, StandardCharsets.UTF_8));
+        assertEquals(sessionData, GsonTranscoder.INSTANCE.deserialize(JsonObject.class, serialized));
+    }
+
+    @Test
+    public void testThatBufferIsReusedSafely() {
+        JsonObject big = createSessionDocument();
+        JsonArray array = new JsonArray();
+        for (int i = 0; i < 50_000; i++) {
+            array.add(new JsonPrimitive(String.valueOf(i)));
+        }
+        big.add("big", array);
+        GsonTranscoder.INSTANCE.encode(big);
+
+        JsonObject small = createSessionDocument();
+        assertEquals(small.toString(),
+                new String(GsonTranscoder.INSTANCE.encode(small).encoded(), StandardCharsets.UTF_8));
+    }
+
+    static JsonObject createSessionDocument() {
+        JsonObject sessionData = new JsonObject();
+        sessionData.addProperty("role", "admin");
+        sessionData.addProperty("tenant", "public");
+        sessionData.addProperty("note", "quotes \" and unicode \u00e9 and <html>");
+        JsonObject jwtPayload = new JsonObject();
+        jwtPayload.addProperty("iss", "https://api.example.com");
+        jwtPayload.addProperty("scope", "read write");
+        jwtPayload.addProperty("count", 42);
+        jwtPayload.addProperty("verified", true);
+
+        JsonObject document = new JsonObject();
+        document.addProperty("session_handle", "8f7a2c4e-1b3d-4e5f-a6b7-c8d9e0f1a2b3");
+        document.addProperty("user_id", "user-1234");
+        document.addProperty("refresh_token_hash_2", "4b227777d4dd1fc61c6f884f48641d02b4d121d3fd328cb08b5531fcacdabf8a");
+        document.add("session_data", sessionData);
+        document.addProperty("expires_at", 1700000000000L);
+        document.add("jwt_user_payload", jwtPayload);
+        document.addProperty("created_at_time", 1690000000000L);
+        document.addProperty("use_static_key", false);
+        document.addProperty("last_updated_sign", "0e5a1c7e-4d2b-4b8e-9f3a-2c1d0e9f8a7b");
+        return document;
+    }
+}
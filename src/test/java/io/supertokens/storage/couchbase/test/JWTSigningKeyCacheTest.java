@@ -0,0 +1,134 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.couchbase.test;
+
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.pluginInterface.jwt.JWTSigningKeyInfo;
+import io.supertokens.pluginInterface.jwt.JWTSymmetricSigningKeyInfo;
+import io.supertokens.storage.couchbase.cache.JWTSigningKeyCache;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class JWTSigningKeyCacheTest {
+
+    @Test
+    public void testThatKeysAreOnlyReloadedWhenTheVersionMoves() throws Exception {
+        FakeSource source = new FakeSource();
+        JWTSigningKeyCache cache = new JWTSigningKeyCache(source, 0);
+
+        assertEquals("a", cache.get().get(0).keyId);
+        assertEquals("a", cache.get().get(0).keyId);
+        assertEquals(2, cache.getVersionCheckCount());
+        assertEquals(1, cache.getLoadCount());
+        assertEquals(1, cache.getHitCount());
+
+        // another node added a key
+        source.keys = Collections.singletonList(key("b"));
+        source.version = 2;
+        assertEquals("b", cache.get().get(0).keyId);
+        assertEquals(2, cache.getLoadCount());
+    }
+
+    @Test
+    public void testThatTheVersionIsNotCheckedWithinTheStalenessWindow() throws Exception {
+        FakeSource source = new FakeSource();
+        JWTSigningKeyCache cache = new JWTSigningKeyCache(source, 60000);
+
+        cache.get();
+        source.keys = Collections.singletonList(key("b"));
+        source.version = 2;
+        assertEquals("a", cache.get().get(0).keyId);
+        assertEquals(1, cache.getVersionCheckCount());
+
+        // after this node wrote a key
+        cache.invalidate();
+        assertEquals("b", cache.get().get(0).keyId);
+        assertEquals(2, cache.getLoadCount());
+    }
+
+    @Test
+    public void testThatAReadThatStartedBeforeAnInvalidationIsNotKept() throws Exception {
+        CountDownLatch loadStarted = new CountDownLatch(1);
+        CountDownLatch releaseLoad = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        JWTSigningKeyCache cache = new JWTSigningKeyCache(new JWTSigningKeyCache.Source() {
+            @Override
+            public long getKeySetVersion() {
+                return loads.get() == 0 ? 1 : 2;
+            }
+
+            @Override
+            public List<JWTSigningKeyInfo> getKeys() throws StorageQueryException {
+                if (loads.incrementAndGet() > 1) {
+                    return Collections.singletonList(key("b"));
+                }
+                // a read of the keys from before this node wrote one, which is slow to finish
+                loadStarted.countDown();
+                try {
+                    releaseLoad.await();
+                } catch (InterruptedException e) {
+                    throw new StorageQueryException(e);
+                }
+                return Collections.singletonList(key("a"));
+            }
+        }, 60000);
+
+        CompletableFuture<List<JWTSigningKeyInfo>> slowRead = CompletableFuture.supplyAsync(() -> {
+            try {
+                return cache.get();
+            } catch (StorageQueryException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        loadStarted.await();
+        cache.invalidate();
+        releaseLoad.countDown();
+        assertEquals("a", slowRead.get(5, TimeUnit.SECONDS).get(0).keyId);
+
+        // within the staleness window, so a kept copy of the slow read would be served here without a check
+        assertEquals("b", cache.get().get(0).keyId);
+        assertEquals(2, loads.get());
+    }
+
+    private static JWTSigningKeyInfo key(String keyId) {
+        return new JWTSymmetricSigningKeyInfo(keyId, System.currentTimeMillis(), "HS256", "secret");
+    }
+
+    private static class FakeSource implements JWTSigningKeyCache.Source {
+        volatile long version = 1;
+        volatile List<JWTSigningKeyInfo> keys = Collections.singletonList(key("a"));
+
+        @Override
+        public long getKeySetVersion() {
+            return version;
+        }
+
+        @Override
+        public List<JWTSigningKeyInfo> getKeys() {
+            return keys;
+        }
+    }
+}
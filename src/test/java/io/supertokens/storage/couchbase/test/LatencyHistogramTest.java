@@ -0,0 +1,71 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.couchbase.test;
+
+import io.supertokens.storage.couchbase.utils.LatencyHistogram;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testThatPercentilesAreReadFromTheRecordedLatencies() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(-1, histogram.getPercentile(99));
+
+        for (int i = 100; i >= 1; i--) {
+            histogram.record(i);
+        }
+
+        assertEquals(100, histogram.getSampleCount());
+        assertEquals(1, histogram.getPercentile(0));
+        assertEquals(50, histogram.getPercentile(50));
+        assertEquals(99, histogram.getPercentile(99));
+        assertEquals(100, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testThatOnlyTheLatestSamplesAreKept() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 1024; i++) {
+            histogram.record(1000);
+        }
+        for (int i = 0; i < 1024; i++) {
+            histogram.record(1);
+        }
+
+        assertEquals(1024, histogram.getSampleCount());
+        assertEquals(1, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testThatSortedSamplesAreRefreshedAfterEnoughNewOnes() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 1024; i++) {
+            histogram.record(10);
+        }
+        assertEquals(10, histogram.getPercentile(99));
+
+        // fewer new samples than the recompute interval may be served from the previous sort
+        for (int i = 0; i < 64; i++) {
+            histogram.record(500);
+        }
+        assertEquals(500, histogram.getPercentile(99));
+    }
+}
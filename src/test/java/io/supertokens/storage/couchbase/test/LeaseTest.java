@@ -0,0 +1,126 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.couchbase.test;
+
+import com.couchbase.client.java.Collection;
+import com.couchbase.client.java.json.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.storage.couchbase.ConnectionPool;
+import io.supertokens.storage.couchbase.Lease;
+import io.supertokens.storage.couchbase.Start;
+import io.supertokens.storage.couchbase.config.Config;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LeaseTest {
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void testThatOnlyOneJobHoldsTheLeaseAtATime() throws Exception {
+        Utils.setValueInConfig("couchbase_maintenance_lease_enabled", "true");
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        Lease lease = ConnectionPool.getLease(start, "test");
+        Boolean ran = lease.runIfAcquired(() -> {
+            assertTrue(lease.isHeld());
+            // a second job of this node is skipped while the first one holds the lease
+            assertNull(lease.runIfAcquired(() -> true));
+            return true;
+        });
+
+        assertTrue(ran);
+        assertFalse(lease.isHeld());
+        assertEquals(1, lease.getAcquiredCount());
+        assertEquals(1, lease.getSkippedCount());
+        assertEquals(lease.getOwner(), lease.getLastSeenOwner());
+
+        // released, so the next run takes it again
+        assertTrue(lease.runIfAcquired(() -> true));
+        assertEquals(2, lease.getAcquiredCount());
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void testThatALeaseOfAnotherNodeIsWaitedOutAndThenTakenOver() throws Exception {
+        Utils.setValueInConfig("couchbase_maintenance_lease_enabled", "true");
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        Collection collection = ConnectionPool.getClientConnectedToBucket(start)
+                .collection(Config.getConfig(start).getKeyValueCollection());
+        collection.insert("lease_test", JsonObject.create().put("owner", "another-node"));
+
+        Lease lease = ConnectionPool.getLease(start, "test");
+        assertNull(lease.runIfAcquired(() -> true));
+        assertEquals("another-node", lease.getLastSeenOwner());
+        assertEquals(1, lease.getSkippedCount());
+
+        // the other node's lease expired
+        collection.remove("lease_test");
+        assertTrue(lease.runIfAcquired(() -> true));
+        assertEquals(1, lease.getHandOffCount());
+        assertFalse(collection.exists("lease_test").exists());
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void testThatJobsAlwaysRunWithLeasesDisabled() throws Exception {
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        Lease lease = ConnectionPool.getLease(start, "test");
+        assertTrue(lease.runIfAcquired(() -> lease.runIfAcquired(() -> true)));
+        assertTrue(lease.isHeld());
+        assertEquals(0, lease.getAcquiredCount());
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+}
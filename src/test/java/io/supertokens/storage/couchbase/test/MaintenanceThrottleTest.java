@@ -0,0 +1,91 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.couchbase.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.storage.couchbase.queries.MaintenanceThrottle;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MaintenanceThrottleTest {
+
+    @Test
+    public void testThatMaintenanceBacksOffWhileForegroundReadsAreSlow() throws Exception {
+        MaintenanceThrottle throttle = createThrottle(true);
+        assertEquals(100, throttle.getBatchSize(100));
+
+        for (int i = 0; i < 100; i++) {
+            throttle.recordForeground(200);
+        }
+        // the rate is only adjusted once a window has passed
+        assertEquals(100, throttle.getBatchSize(100));
+        Thread.sleep(1100);
+
+        assertEquals(50, throttle.getBatchSize(100));
+        assertEquals(4, throttle.getConcurrency(8));
+        assertEquals(200, throttle.getLastForegroundP99());
+        assertEquals(1, throttle.getBackOffCount());
+    }
+
+    @Test
+    public void testThatMaintenanceSpeedsUpAgainWhenReadsAreFastOrFew() throws Exception {
+        MaintenanceThrottle throttle = createThrottle(true);
+        for (int i = 0; i < 100; i++) {
+            throttle.recordForeground(200);
+        }
+        Thread.sleep(1100);
+        assertEquals(50, throttle.getBatchSize(100));
+        assertEquals(0.5, throttle.getRate(), 0);
+
+        for (int i = 0; i < 100; i++) {
+            throttle.recordForeground(10);
+        }
+        Thread.sleep(1100);
+        assertEquals(63, throttle.getBatchSize(100));
+        assertEquals(0.625, throttle.getRate(), 0.001);
+
+        // too few reads to tell counts as idle
+        throttle.recordForeground(500);
+        Thread.sleep(1100);
+        throttle.getBatchSize(100);
+        assertEquals(0.75, throttle.getRate(), 0.001);
+        assertEquals(-1, throttle.getLastForegroundP99());
+        assertEquals(2, throttle.getSpeedUpCount());
+    }
+
+    @Test
+    public void testThatMaintenanceRunsAtFullRateWhenDisabled() throws Exception {
+        MaintenanceThrottle throttle = createThrottle(false);
+        for (int i = 0; i < 100; i++) {
+            throttle.recordForeground(200);
+        }
+        Thread.sleep(1100);
+
+        assertEquals(100, throttle.getBatchSize(100));
+        assertEquals(8, throttle.getConcurrency(8));
+        assertEquals(0, throttle.getBackOffCount());
+    }
+
+    private static MaintenanceThrottle createThrottle(boolean enabled) throws Exception {
+        JsonObject config = new JsonObject();
+        config.addProperty("couchbase_maintenance_throttle_enabled", enabled);
+        config.addProperty("couchbase_maintenance_throttle_target_latency_ms", 50);
+        return MaintenanceThrottle.getInstance(Utils.getStartWithConfig(config));
+    }
+}
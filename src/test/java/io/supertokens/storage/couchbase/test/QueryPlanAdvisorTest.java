@@ -0,0 +1,66 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.couchbase.test;
+
+import com.couchbase.client.java.json.JsonObject;
+import io.supertokens.storage.couchbase.queries.QueryPlanAdvisor;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QueryPlanAdvisorTest {
+
+    @Test
+    public void testThatPrimaryScanWithFetchIsReported() {
+        JsonObject explained = JsonObject.fromJson("{\"plan\": {\"#operator\": \"Sequence\", \"~children\": ["
+                + "{\"#operator\": \"PrimaryScan3\", \"index\": \"#primary\", \"keyspace\": \"jwt_signing_keys\"},"
+                + "{\"#operator\": \"Fetch\", \"keyspace\": \"jwt_signing_keys\"},"
+                + "{\"#operator\": \"InitialProject\"}]}, \"text\": \"SELECT * FROM `jwt_signing_keys`;\"}");
+
+        QueryPlanAdvisor.PlanReport report = QueryPlanAdvisor.analyse("getJWTSigningKeys_Transaction",
+                "SELECT * FROM `jwt_signing_keys`;", explained);
+
+        assertTrue(report.hasFindings());
+        assertTrue(report.primaryScan);
+        assertTrue(report.unboundedFetch);
+        assertFalse(report.nonCoveringIndex);
+        assertEquals(Collections.singletonList("#primary"), report.indexes);
+        assertNull(report.estimatedCost);
+    }
+
+    @Test
+    public void testThatCoveringIndexScanHasNoFindingsAndReportsCost() {
+        JsonObject explained = JsonObject.fromJson("{\"plan\": {\"#operator\": \"Sequence\","
+                + " \"optimizer_estimates\": {\"cost\": 12.5, \"cardinality\": 3}, \"~children\": ["
+                + "{\"#operator\": \"IndexScan3\", \"index\": \"idx_session_info_user_id_id_expires_at\","
+                + " \"covers\": [\"cover ((`s`.`user_id`))\"], \"optimizer_estimates\": {\"cost\": 4.2}},"
+                + "{\"#operator\": \"InitialProject\"}]}}");
+
+        QueryPlanAdvisor.PlanReport report = QueryPlanAdvisor.analyse("getAllNonExpiredSessionHandlesForUser",
+                "SELECT META().id FROM `session_info` WHERE user_id = $1", explained);
+
+        assertFalse(report.hasFindings());
+        assertEquals(Collections.singletonList("idx_session_info_user_id_id_expires_at"), report.indexes);
+        assertEquals(12.5, report.estimatedCost, 0);
+    }
+}
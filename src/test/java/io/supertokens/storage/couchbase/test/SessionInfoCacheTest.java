@@ -0,0 +1,132 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.couchbase.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.pluginInterface.session.noSqlStorage.SessionInfoWithLastUpdated;
+import io.supertokens.storage.couchbase.Start;
+import io.supertokens.storage.couchbase.cache.SessionInfoCache;
+import io.supertokens.storage.couchbase.queries.SessionQueries.SessionDocument;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SessionInfoCacheTest {
+
+    @Test
+    public void testThatHitsAreCopiesOfTheCachedEntry() throws Exception {
+        SessionInfoCache cache = createCache(1024 * 1024, 60000);
+        cache.put(createDocument("handle", "user", 100), cache.getReadStamp());
+
+        SessionDocument first = cache.get("handle");
+        first.info.userDataInDatabase.getAsJsonObject().addProperty("role", "changed");
+        SessionDocument second = cache.get("handle");
+
+        assertNotSame(first.info, second.info);
+        assertEquals("admin", second.info.userDataInDatabase.getAsJsonObject().get("role").getAsString());
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void testThatPutsOfReadsThatStartedBeforeAnInvalidationAreDropped() throws Exception {
+        SessionInfoCache cache = createCache(1024 * 1024, 60000);
+
+        long readStamp = cache.getReadStamp();
+        cache.invalidate("handle");
+        cache.put(createDocument("handle", "user", 100), readStamp);
+        assertNull(cache.get("handle"));
+
+        readStamp = cache.getReadStamp();
+        cache.invalidateAllOfUser("user");
+        cache.put(createDocument("other-handle", "user", 100), readStamp);
+        assertNull(cache.get("other-handle"));
+        assertEquals(2, cache.getStalePutCount());
+
+        // a read that starts after the invalidation may put its result
+        cache.put(createDocument("handle", "user", 100), cache.getReadStamp());
+        assertNotNull(cache.get("handle"));
+    }
+
+    @Test
+    public void testThatEntriesAreKeptUntilTheEarlierOfTheirTTLAndTheSessionsExpiry() throws Exception {
+        SessionInfoCache cache = createCache(1024 * 1024, 200);
+        long now = System.currentTimeMillis();
+
+        cache.put(createDocument("expired", "user", 100, now - 1), cache.getReadStamp());
+        cache.put(createDocument("expiring", "user", 100, now + 50), cache.getReadStamp());
+        cache.put(createDocument("long-lived", "user", 100, now + 3600000), cache.getReadStamp());
+        assertNull(cache.get("expired"));
+
+        Thread.sleep(100);
+        assertNull(cache.get("expiring"));
+        assertNotNull(cache.get("long-lived"));
+
+        Thread.sleep(150);
+        assertNull(cache.get("long-lived"));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testThatEachSegmentKeepsToItsShareOfTheSizeLimit() throws Exception {
+        // 16 segments of 2000 bytes each, and each entry weighs its size plus 256 bytes of overhead
+        SessionInfoCache cache = createCache(16 * 2000, 60000);
+
+        // too big for a segment, even though the cache as a whole is empty
+        cache.put(createDocument("big", "user", 1800), cache.getReadStamp());
+        assertNull(cache.get("big"));
+
+        for (int i = 0; i < 200; i++) {
+            cache.put(createDocument("handle-" + i, "user", 700), cache.getReadStamp());
+        }
+        assertTrue(cache.getWeight() <= 16 * 2000);
+        // at most two entries fit in each segment
+        assertTrue(cache.getSize() <= 32);
+        assertTrue(cache.getSize() > 0);
+        assertEquals(cache.getSize() * (700 + 256), cache.getWeight());
+
+        cache.clear();
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getWeight());
+    }
+
+    private static SessionInfoCache createCache(long maxSizeBytes, long ttl) throws Exception {
+        JsonObject config = new JsonObject();
+        config.addProperty("couchbase_session_cache_max_size_bytes", maxSizeBytes);
+        config.addProperty("couchbase_session_cache_ttl_ms", ttl);
+        Start start = Utils.getStartWithConfig(config);
+        return SessionInfoCache.getInstance(start);
+    }
+
+    private static SessionDocument createDocument(String sessionHandle, String userId, int sizeInBytes) {
+        return createDocument(sessionHandle, userId, sizeInBytes, System.currentTimeMillis() + 3600000);
+    }
+
+    private static SessionDocument createDocument(String sessionHandle, String userId, int sizeInBytes, long expiry) {
+        JsonObject sessionData = new JsonObject();
+        sessionData.addProperty("role", "admin");
+        JsonObject jwtPayload = new JsonObject();
+        jwtPayload.addProperty("scope", "read");
+        SessionInfoWithLastUpdated info = new SessionInfoWithLastUpdated(sessionHandle, userId, "hash", sessionData,
+                expiry, jwtPayload, System.currentTimeMillis(), false, "sign");
+        return new SessionDocument(info, 1, sizeInBytes, false);
+    }
+}
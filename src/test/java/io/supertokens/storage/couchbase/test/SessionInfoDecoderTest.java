@@ -0,0 +1,128 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.couchbase.test;
+
+import com.couchbase.client.java.kv.LookupInResult;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.pluginInterface.session.noSqlStorage.SessionInfoWithLastUpdated;
+import io.supertokens.storage.couchbase.queries.SessionInfoDecoder;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SessionInfoDecoderTest {
+
+    @Test
+    public void testThatDocumentIsDecodedAndUnknownFieldsAreSkipped() throws Exception {
+        JsonObject document = GsonTranscoderTest.createSessionDocument();
+        JsonObject unknown = new JsonObject();
+        unknown.add("nested", new JsonArray());
+        unknown.getAsJsonArray("nested").add(new JsonPrimitive("value"));
+        document.add("added_by_a_later_version", unknown);
+        document.addProperty("payload_expires_at", 1700000000000L);
+
+        SessionInfoWithLastUpdated info = SessionInfoDecoder.decode("handle", toBytes(document));
+
+        assertEquals("handle", info.sessionHandle);
+        assertEquals("user-1234", info.userId);
+        assertEquals(document.get("refresh_token_hash_2").getAsString(), info.refreshTokenHash2);
+        assertEquals(document.get("session_data"), info.userDataInDatabase);
+        assertEquals(1700000000000L, info.expiry);
+        assertEquals(document.get("jwt_user_payload"), info.userDataInJWT);
+        assertEquals(1690000000000L, info.timeCreated);
+        assertFalse(info.useStaticKey);
+        assertEquals(document.get("last_updated_sign").getAsString(), info.lastUpdatedSign);
+    }
+
+    @Test
+    public void testThatMissingOrNullPayloadsAreEmptyObjects() throws Exception {
+        JsonObject document = GsonTranscoderTest.createSessionDocument();
+        document.remove("session_data");
+        document.add("jwt_user_payload", null);
+
+        SessionInfoDecoder decoder = new SessionInfoDecoder().readDocument(toBytes(document));
+        SessionInfoWithLastUpdated info = decoder.toSessionInfo("handle");
+
+        assertFalse(decoder.hasPayload());
+        assertEquals(new JsonObject(), info.userDataInDatabase);
+        assertEquals(new JsonObject(), info.userDataInJWT);
+        assertNull(decoder.toSessionInfoWithoutSessionData("handle").userDataInDatabase);
+    }
+
+    @Test
+    public void testThatAPayloadDocumentIsMergedIntoTheSessionInfo() throws Exception {
+        JsonObject document = GsonTranscoderTest.createSessionDocument();
+        JsonObject payload = new JsonObject();
+        payload.add("session_data", document.remove("session_data"));
+        payload.add("jwt_user_payload", document.remove("jwt_user_payload"));
+
+        SessionInfoDecoder decoder = new SessionInfoDecoder().readDocument(toBytes(document));
+        assertFalse(decoder.hasPayload());
+        SessionInfoWithLastUpdated info = decoder.readDocument(toBytes(payload)).toSessionInfo("handle");
+
+        assertTrue(decoder.hasPayload());
+        assertEquals("user-1234", info.userId);
+        assertEquals(payload.get("session_data"), info.userDataInDatabase);
+        assertEquals(payload.get("jwt_user_payload"), info.userDataInJWT);
+    }
+
+    @Test
+    public void testThatLookupResultsAreReadByPath() throws Exception {
+        JsonObject document = GsonTranscoderTest.createSessionDocument();
+        String[] paths = { "user_id", "expires_at", "session_data", "jwt_user_payload", "use_static_key" };
+        LookupInResult result = mock(LookupInResult.class);
+        for (int i = 0; i < paths.length; i++) {
+            when(result.exists(i)).thenReturn(!paths[i].equals("session_data"));
+            when(result.contentAsBytes(i)).thenReturn(toBytes(document.get(paths[i])));
+        }
+
+        SessionInfoWithLastUpdated info = new SessionInfoDecoder().readLookup(paths, result)
+                .toSessionInfoWithoutSessionData("handle");
+
+        assertEquals("user-1234", info.userId);
+        assertEquals(1700000000000L, info.expiry);
+        assertEquals(document.get("jwt_user_payload"), info.userDataInJWT);
+        assertFalse(info.useStaticKey);
+        assertNull(info.userDataInDatabase);
+        assertNull(info.refreshTokenHash2);
+    }
+
+    @Test
+    public void testThatMalformedDocumentsFail() {
+        try {
+            SessionInfoDecoder.decode("handle", "{\"user_id\": ".getBytes(StandardCharsets.UTF_8));
+            fail();
+        } catch (StorageQueryException ignored) {
+        }
+    }
+
+    private static byte[] toBytes(Object json) {
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.couchbase.test;
+
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.couchbase.utils.SingleFlight;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+
+    @Test
+    public void testThatOverlappingLoadsShareOneCallAndGetTheirOwnCopies() throws Exception {
+        SingleFlight<String, StringBuilder> singleFlight = new SingleFlight<>(StringBuilder::new);
+        StringBuilder loaded = new StringBuilder("value");
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<StringBuilder> leader = loadInBackground(singleFlight, () -> {
+            calls.incrementAndGet();
+            started.countDown();
+            await(release);
+            return loaded;
+        });
+        started.await();
+        CompletableFuture<StringBuilder> waiter = loadInBackground(singleFlight, () -> {
+            calls.incrementAndGet();
+            return new StringBuilder("other");
+        });
+        waitForFolded(singleFlight, 1);
+        release.countDown();
+
+        assertEquals("value", leader.get(5, TimeUnit.SECONDS).toString());
+        assertEquals("value", waiter.get(5, TimeUnit.SECONDS).toString());
+        assertNotSame(leader.get(), waiter.get());
+        assertNotSame(loaded, leader.get());
+        assertNotSame(loaded, waiter.get());
+        assertEquals(1, calls.get());
+
+        // nothing is remembered once the load has finished
+        singleFlight.load("key", () -> {
+            calls.incrementAndGet();
+            return loaded;
+        });
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testThatNullIsNotCopied() throws Exception {
+        SingleFlight<String, StringBuilder> singleFlight = new SingleFlight<>(value -> {
+            throw new AssertionError();
+        });
+
+        assertNull(singleFlight.load("key", () -> null));
+    }
+
+    @Test
+    public void testThatErrorsOfTheLoaderReachEveryCaller() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        StorageQueryException error = new StorageQueryException(new Exception("failed"));
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<String> leader = loadInBackground(singleFlight, () -> {
+            started.countDown();
+            await(release);
+            throw error;
+        });
+        started.await();
+        CompletableFuture<String> waiter = loadInBackground(singleFlight, () -> "other");
+        waitForFolded(singleFlight, 1);
+        release.countDown();
+
+        assertSame(error, getFailure(leader));
+        assertSame(error, getFailure(waiter));
+
+        RuntimeException runtimeError = new IllegalStateException("failed");
+        try {
+            singleFlight.load("key", () -> {
+                throw runtimeError;
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertSame(runtimeError, e);
+        }
+    }
+
+    @Test
+    public void testThatAnInterruptedWaiterGivesUpWithoutAffectingTheLoad() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<String> leader = loadInBackground(singleFlight, () -> {
+            started.countDown();
+            await(release);
+            return "value";
+        });
+        started.await();
+
+        CompletableFuture<Throwable> waiterFailure = new CompletableFuture<>();
+        Thread waiter = new Thread(() -> {
+            try {
+                singleFlight.load("key", () -> "other");
+                waiterFailure.complete(null);
+            } catch (Throwable e) {
+                waiterFailure.complete(Thread.currentThread().isInterrupted() ? e : new AssertionError(e));
+            }
+        });
+        waiter.start();
+        waitForFolded(singleFlight, 1);
+        waiter.interrupt();
+
+        Throwable failure = waiterFailure.get(5, TimeUnit.SECONDS);
+        assertTrue(failure instanceof StorageQueryException);
+        assertTrue(failure.getCause() instanceof InterruptedException);
+
+        release.countDown();
+        assertEquals("value", leader.get(5, TimeUnit.SECONDS));
+    }
+
+    private static <V> CompletableFuture<V> loadInBackground(SingleFlight<String, V> singleFlight,
+            SingleFlight.Loader<V> loader) {
+        CompletableFuture<V> result = new CompletableFuture<>();
+        new Thread(() -> {
+            try {
+                result.complete(singleFlight.load("key", loader));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }).start();
+        return result;
+    }
+
+    private static Throwable getFailure(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        throw new AssertionError("the load did not fail");
+    }
+
+    private static void await(CountDownLatch latch) throws StorageQueryException {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new StorageQueryException(e);
+        }
+    }
+
+    private static void waitForFolded(SingleFlight<?, ?> singleFlight, long folded) throws InterruptedException {
+        while (singleFlight.getFoldedCount() < folded) {
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ *    Copyright (c) 2023, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.couchbase.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.multitenancy.TenantIdentifier;
+import io.supertokens.session.Session;
+import io.supertokens.session.info.SessionInformationHolder;
+import io.supertokens.storage.couchbase.Start;
+import io.supertokens.storage.couchbase.queries.UserSessionIndex;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class UserSessionIndexTest {
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void testThatKeysOfLongUserIdsAreHashed() {
+        assertEquals("user_sessions_user", UserSessionIndex.getKey("user"));
+
+        // 14 bytes of prefix and 236 of two byte characters still fit in a key
+        String fits = repeat("é", 118);
+        assertEquals("user_sessions_" + fits, UserSessionIndex.getKey(fits));
+
+        String tooLong = repeat("é", 119);
+        String key = UserSessionIndex.getKey(tooLong);
+        assertTrue(key.startsWith("user_sessions_sha256_"));
+        assertEquals("user_sessions_sha256_".length() + 64, key.getBytes(StandardCharsets.UTF_8).length);
+        assertEquals(key, UserSessionIndex.getKey(tooLong));
+        assertNotEquals(key, UserSessionIndex.getKey(repeat("é", 120)));
+    }
+
+    @Test
+    public void testThatSessionsAreListedAndDeletedThroughTheIndex() throws Exception {
+        Utils.setValueInConfig("couchbase_session_user_index_enabled", "true");
+        String[] args = { "../" };
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        Start start = (Start) StorageLayer.getStorage(process.getProcess());
+
+        String longUserId = repeat("u", 300);
+        String first = createSession(process, "user");
+        String second = createSession(process, "user");
+        String ofLongUserId = createSession(process, longUserId);
+        UserSessionIndex index = UserSessionIndex.getInstance(start);
+        index.reconcile();
+
+        assertEquals(new HashSet<>(Arrays.asList(first, second)),
+                new HashSet<>(Arrays.asList(index.getNonExpiredSessionHandles("user"))));
+        assertArrayEquals(new String[] { ofLongUserId }, index.getNonExpiredSessionHandles(longUserId));
+
+        assertTrue(start.deleteSessionsOfUser(TenantIdentifier.BASE_TENANT, "user"));
+        assertEquals(0, index.getNonExpiredSessionHandles("user").length);
+        assertFalse(start.deleteSessionsOfUser(TenantIdentifier.BASE_TENANT, "user"));
+        assertArrayEquals(new String[] { ofLongUserId },
+                start.getAllNonExpiredSessionHandlesForUser(TenantIdentifier.BASE_TENANT, longUserId));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void testThatReconcileIndexesSessionsCreatedWhileTheIndexWasDisabled() throws Exception {
+        String[] args = { "../" };
+        String sessionHandle;
+        {
+            TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+            assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+            sessionHandle = createSession(process, "user");
+            process.kill();
+            assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+        }
+        {
+            Utils.setValueInConfig("couchbase_session_user_index_enabled", "true");
+            TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+            assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+            Start start = (Start) StorageLayer.getStorage(process.getProcess());
+            UserSessionIndex index = UserSessionIndex.getInstance(start);
+
+            index.reconcile();
+            assertEquals(1, index.getReconcileAddedCount());
+            assertArrayEquals(new String[] { sessionHandle }, index.getNonExpiredSessionHandles("user"));
+
+            // nothing is left to add
+            index.reconcile();
+            assertEquals(1, index.getReconcileAddedCount());
+
+            process.kill();
+            assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+        }
+    }
+
+    private static String createSession(TestingProcessManager.TestingProcess process, String userId)
+            throws Exception {
+        SessionInformationHolder session = Session.createNewSession(process.getProcess(), userId, new JsonObject(),
+                new JsonObject());
+        return session.session.handle;
+    }
+
+    private static String repeat(String value, int times) {
+        StringBuilder repeated = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            repeated.append(value);
+        }
+        return repeated.toString();
+    }
+}
@@ -17,9 +17,12 @@
 
 package io.supertokens.storage.couchbase.test;
 
+import com.google.gson.JsonObject;
 import io.supertokens.Main;
 import io.supertokens.pluginInterface.PluginInterfaceTesting;
+import io.supertokens.pluginInterface.exceptions.InvalidConfigException;
 import io.supertokens.storage.couchbase.Start;
+import io.supertokens.storage.couchbase.config.Config;
 import io.supertokens.storageLayer.StorageLayer;
 import org.apache.tomcat.util.http.fileupload.FileUtils;
 import org.junit.rules.TestRule;
@@ -31,6 +34,7 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.Arrays;
+import java.util.Collections;
 
 abstract class Utils extends Mockito {
 
@@ -147,6 +151,16 @@ abstract class Utils extends Mockito {
 
     }
 
+    // a Start that has only loaded the given config, for the parts of the plugin that do not talk to the cluster
+    static Start getStartWithConfig(JsonObject config) throws InvalidConfigException {
+        if (!config.has("couchbase_connection_uri")) {
+            config.addProperty("couchbase_connection_uri", "couchbase://localhost");
+        }
+        Start start = new Start();
+        Config.loadConfig(start, config, Collections.emptySet(), null);
+        return start;
+    }
+
     static TestRule getOnFailure() {
         return new TestWatcher() {
             @Override